@@ -0,0 +1,571 @@
+package uk.co.la1tv.dvrBridgeService.controllers;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.log4j.Logger;
+import org.eclipse.jetty.server.HttpOutput;
+import org.eclipse.jetty.util.Callback;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RestController;
+
+import uk.co.la1tv.dvrBridgeService.helpers.FileHelper;
+import uk.co.la1tv.dvrBridgeService.hlsRecorder.PlaylistSnapshot;
+import uk.co.la1tv.dvrBridgeService.httpExceptions.BadRequestException;
+import uk.co.la1tv.dvrBridgeService.httpExceptions.ResourceNotFoundException;
+import uk.co.la1tv.dvrBridgeService.scheduling.SharedScheduler;
+import uk.co.la1tv.dvrBridgeService.servableFiles.IPlaylistAvailableCallback;
+import uk.co.la1tv.dvrBridgeService.servableFiles.PlaylistContentStore;
+import uk.co.la1tv.dvrBridgeService.servableFiles.SegmentCache;
+import uk.co.la1tv.dvrBridgeService.servableFiles.ServableFileGenerator;
+
+/**
+ * Serves the generated playlists and segments, so that an external web server isn't needed.
+ * Enabled with app.serveFiles, and app.webDirectoryBaseUrl should then be set to the url of
+ * this service followed by PATH.
+ * 
+ * Playlists are served from memory, and requests for a playlist can be held until it contains
+ * a segment (LL-HLS blocking reload). Segments are served from the SegmentCache if they are
+ * in it, where the buffer is handed to jetty and written to the socket without being copied.
+ * Otherwise the file is opened and jetty reads it as it is sent. Either way the response is
+ * written asynchronously.
+ */
+@RestController
+public class SegmentController {
+	
+	private static Logger logger = Logger.getLogger(SegmentController.class);
+	
+	// the path that files are served under. Requests to this path do not need the secret
+	public static final String PATH = "/segments";
+	
+	// the names of servable files are a hash, optionally followed by an extension
+	private static final Pattern FILE_NAME_PATTERN = Pattern.compile("^[0-9a-f]+(\\.[A-Za-z0-9]+)?$");
+	private static final Pattern RANGE_PATTERN = Pattern.compile("^bytes=(\\d*)-(\\d*)$");
+	private static final HashMap<String, String> CONTENT_TYPES = new HashMap<>();
+	static {
+		CONTENT_TYPES.put("ts", "video/MP2T");
+		CONTENT_TYPES.put("aac", "audio/aac");
+		CONTENT_TYPES.put("mp4", "video/mp4");
+		CONTENT_TYPES.put("m3u8", "application/vnd.apple.mpegurl");
+	}
+	
+	@Value("${app.serverId}")
+	private String serverId;
+	
+	@Value("${app.serveFiles}")
+	private boolean serveFiles;
+	
+	@Value("${app.segmentMaxAge}")
+	private int segmentMaxAge;
+	
+	@Value("${app.playlistMaxAge}")
+	private int playlistMaxAge;
+	
+	@Autowired
+	private ServableFileGenerator servableFileGenerator;
+	
+	@Autowired
+	private SegmentCache segmentCache;
+	
+	@Autowired
+	private PlaylistContentStore playlistContentStore;
+	
+	@Autowired
+	private SharedScheduler scheduler;
+	
+	@RequestMapping(value = PATH+"/{serverId}/{name:.+}", method = {RequestMethod.GET, RequestMethod.HEAD})
+	public void handleGet(@PathVariable("serverId") String requestedServerId, @PathVariable("name") String name, HttpServletRequest request, HttpServletResponse response) throws IOException {
+		if (!serveFiles || !requestedServerId.equals(serverId) || !FILE_NAME_PATTERN.matcher(name).matches()) {
+			throw(new ResourceNotFoundException("File not found."));
+		}
+		
+		String extension = FileHelper.getExtension(name).toLowerCase();
+		if (extension.equals("m3u8")) {
+			handlePlaylist(name, request, response);
+			return;
+		}
+		
+		String contentType = CONTENT_TYPES.get(extension);
+		response.setContentType(contentType != null ? contentType : "application/octet-stream");
+		response.setHeader("Cache-Control", "public, max-age="+segmentMaxAge);
+		// a segment file never changes so the name identifies the content
+		String etag = "\""+name+"\"";
+		
+		final SegmentCache.Entry cacheEntry = segmentCache.get(name);
+		if (cacheEntry == null) {
+			sendFile(name, request, response, etag);
+			return;
+		}
+		if (!request.isAsyncSupported()) {
+			try {
+				sendContent(request, response, cacheEntry.getContent(), etag, null);
+			}
+			finally {
+				cacheEntry.release();
+			}
+			return;
+		}
+		// the buffer must not go back to the pool until the response has been sent
+		AsyncContext asyncContext = request.startAsync();
+		asyncContext.addListener(new AsyncListener() {
+			@Override
+			public void onComplete(AsyncEvent event) {
+				cacheEntry.release();
+			}
+			
+			@Override
+			public void onTimeout(AsyncEvent event) {}
+			
+			@Override
+			public void onError(AsyncEvent event) {}
+			
+			@Override
+			public void onStartAsync(AsyncEvent event) {}
+		});
+		try {
+			sendContent(request, response, cacheEntry.getContent(), etag, asyncContext);
+		}
+		catch(IOException | RuntimeException e) {
+			asyncContext.complete();
+			throw(e);
+		}
+	}
+	
+	/**
+	 * Serve a playlist. Supports the LL-HLS blocking playlist reload (_HLS_msn) and delta
+	 * update (_HLS_skip) query parameters, which are advertised in generated playlists when
+	 * app.lowLatencyPlaylists is enabled.
+	 * @param name
+	 * @param request
+	 * @param response
+	 * @throws IOException
+	 */
+	private void handlePlaylist(final String name, final HttpServletRequest request, final HttpServletResponse response) throws IOException {
+		PlaylistContentStore.PlaylistContent playlist = playlistContentStore.get(name);
+		if (playlist == null) {
+			throw(new ResourceNotFoundException("File not found."));
+		}
+		
+		String msnStr = request.getParameter("_HLS_msn");
+		if (msnStr == null) {
+			if (request.getParameter("_HLS_part") != null) {
+				throw(new BadRequestException("_HLS_part requires _HLS_msn."));
+			}
+			sendPlaylist(request, response, playlist, null);
+			return;
+		}
+		long msn;
+		try {
+			msn = Long.parseLong(msnStr);
+		}
+		catch(NumberFormatException e) {
+			throw(new BadRequestException("Invalid _HLS_msn."));
+		}
+		PlaylistSnapshot snapshot = playlist.getSnapshot();
+		if (msn < 0 || (snapshot != null && !snapshot.isEnded() && msn > snapshot.getNextMediaSequence()+1)) {
+			// the spec says a request for more than 2 segments past the end should be rejected
+			throw(new BadRequestException("_HLS_msn is too far in the future."));
+		}
+		if (!request.isAsyncSupported()) {
+			// can't hold the request without blocking a thread, so respond with what is available now
+			sendPlaylist(request, response, playlist, null);
+			return;
+		}
+		
+		final AsyncContext asyncContext = request.startAsync();
+		asyncContext.setTimeout(0);
+		final IPlaylistAvailableCallback callback = new IPlaylistAvailableCallback() {
+			@Override
+			public void onAvailable(PlaylistContentStore.PlaylistContent content) {
+				try {
+					if (content == null) {
+						// capture removed
+						response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+						asyncContext.complete();
+						return;
+					}
+					sendPlaylist(request, response, content, asyncContext);
+				} catch (Exception e) {
+					logger.debug("Failed to send playlist: "+e);
+					asyncContext.complete();
+				}
+			}
+		};
+		playlistContentStore.waitFor(name, msn, callback);
+		// the spec says to give up after 3 target durations
+		int targetDuration = snapshot != null ? Math.max(1, snapshot.getTargetDuration()) : 1;
+		scheduler.schedule(new Runnable() {
+			@Override
+			public void run() {
+				if (playlistContentStore.cancelWait(name, callback)) {
+					response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+					asyncContext.complete();
+				}
+			}
+		}, targetDuration*3*1000);
+	}
+	
+	/**
+	 * Send a playlist, or a delta update of it if one was requested and is possible.
+	 * @param request
+	 * @param response
+	 * @param playlist
+	 * @param asyncContext The context if the request has already been made asynchronous, otherwise null.
+	 * @throws IOException
+	 */
+	private void sendPlaylist(HttpServletRequest request, HttpServletResponse response, PlaylistContentStore.PlaylistContent playlist, AsyncContext asyncContext) throws IOException {
+		ByteBuffer content = null;
+		String etag = playlist.getEtag();
+		String skip = request.getParameter("_HLS_skip");
+		PlaylistSnapshot snapshot = playlist.getSnapshot();
+		if (skip != null && (skip.equals("YES") || skip.equals("v2")) && snapshot != null) {
+			// there are no date ranges so "v2" is the same as "YES"
+			content = snapshot.createDeltaUpdate();
+			if (content != null) {
+				etag = etag.substring(0, etag.length()-1)+"-skip\"";
+			}
+		}
+		if (content == null) {
+			content = playlist.getContent();
+		}
+		response.setContentType(CONTENT_TYPES.get("m3u8"));
+		// playlists change as segments are added
+		response.setHeader("Cache-Control", "max-age="+playlistMaxAge);
+		sendContent(request, response, content, etag, asyncContext);
+	}
+	
+	/**
+	 * Handle conditional and range requests and then send the content.
+	 * @param request
+	 * @param response
+	 * @param content
+	 * @param etag
+	 * @param asyncContext The context if the request has already been made asynchronous, otherwise null.
+	 * @throws IOException
+	 */
+	private void sendContent(HttpServletRequest request, HttpServletResponse response, ByteBuffer content, String etag, AsyncContext asyncContext) throws IOException {
+		long[] byteRange = prepareResponse(request, response, content.remaining(), etag);
+		if (byteRange == null) {
+			complete(asyncContext);
+			return;
+		}
+		content.position(content.position()+(int) byteRange[0]);
+		content.limit(content.position()+(int) (byteRange[1]-byteRange[0]+1));
+		send(request, response, content, asyncContext);
+	}
+	
+	/**
+	 * Handle conditional and range requests and then send a file from the web directory.
+	 * The file is read as it is sent instead of being memory mapped, so once the response has
+	 * finished nothing refers to it and the space is given back straight away if it is deleted.
+	 * @param name
+	 * @param request
+	 * @param response
+	 * @param etag
+	 * @throws IOException
+	 */
+	private void sendFile(String name, HttpServletRequest request, HttpServletResponse response, String etag) throws IOException {
+		File file = new File(servableFileGenerator.getWebDirectory(), name);
+		FileChannel channel;
+		try {
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		}
+		catch(NoSuchFileException e) {
+			throw(new ResourceNotFoundException("File not found."));
+		}
+		try {
+			long[] byteRange = prepareResponse(request, response, channel.size(), etag);
+			if (byteRange != null) {
+				send(request, response, channel, byteRange[0], byteRange[1]-byteRange[0]+1);
+				// closed once it has been sent
+				channel = null;
+			}
+		}
+		finally {
+			if (channel != null) {
+				channel.close();
+			}
+		}
+	}
+	
+	/**
+	 * Set the headers for the content, and the status for conditional and range requests.
+	 * @param request
+	 * @param response
+	 * @param length The length of the content.
+	 * @param etag
+	 * @return The first and last byte positions of the content that should be sent, or null if
+	 *         nothing should be sent (not modified, range not satisfiable, or a HEAD request).
+	 */
+	private static long[] prepareResponse(HttpServletRequest request, HttpServletResponse response, long length, String etag) {
+		response.setHeader("ETag", etag);
+		response.setHeader("Accept-Ranges", "bytes");
+		
+		if (matchesEtag(request.getHeader("If-None-Match"), etag)) {
+			response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return null;
+		}
+		
+		long start = 0;
+		long end = length-1;
+		String range = request.getHeader("Range");
+		String ifRange = request.getHeader("If-Range");
+		if (range != null && (ifRange == null || ifRange.equals(etag))) {
+			long[] byteRange = parseRange(range, length);
+			if (byteRange != null && byteRange.length == 0) {
+				response.setHeader("Content-Range", "bytes */"+length);
+				response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+				return null;
+			}
+			else if (byteRange != null) {
+				response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+				response.setHeader("Content-Range", "bytes "+byteRange[0]+"-"+byteRange[1]+"/"+length);
+				start = byteRange[0];
+				end = byteRange[1];
+			}
+		}
+		response.setContentLength((int) (end-start+1));
+		if (request.getMethod().equals("HEAD")) {
+			return null;
+		}
+		return new long[]{start, end};
+	}
+	
+	private static void complete(AsyncContext asyncContext) {
+		if (asyncContext != null) {
+			asyncContext.complete();
+		}
+	}
+	
+	/**
+	 * Write the content and complete the response.
+	 * With jetty this is done asynchronously, so the request thread is not held while a slow
+	 * client is reading.
+	 * @param request
+	 * @param response
+	 * @param content
+	 * @param existingAsyncContext The context if the request has already been made asynchronous, otherwise null.
+	 * @throws IOException
+	 */
+	private void send(HttpServletRequest request, HttpServletResponse response, ByteBuffer content, AsyncContext existingAsyncContext) throws IOException {
+		ServletOutputStream out = response.getOutputStream();
+		if (!(out instanceof HttpOutput)) {
+			// not running in jetty
+			WritableByteChannel channel = Channels.newChannel(out);
+			while(content.hasRemaining()) {
+				channel.write(content);
+			}
+			complete(existingAsyncContext);
+			return;
+		}
+		if (existingAsyncContext == null && !request.isAsyncSupported()) {
+			((HttpOutput) out).sendContent(content);
+			return;
+		}
+		AsyncContext asyncContext = existingAsyncContext != null ? existingAsyncContext : request.startAsync();
+		((HttpOutput) out).sendContent(content, createCompleteCallback(asyncContext));
+	}
+	
+	/**
+	 * Write part of a file and complete the response, then close the file.
+	 * With jetty the file is read a buffer at a time as the client reads it, without holding
+	 * the request thread.
+	 * @param request
+	 * @param response
+	 * @param channel
+	 * @param position The position in the file to start from.
+	 * @param count The number of bytes to send.
+	 * @throws IOException
+	 */
+	private void send(HttpServletRequest request, HttpServletResponse response, FileChannel channel, long position, long count) throws IOException {
+		ServletOutputStream out = response.getOutputStream();
+		if (!(out instanceof HttpOutput)) {
+			// not running in jetty
+			try {
+				WritableByteChannel outChannel = Channels.newChannel(out);
+				while(count > 0) {
+					long numTransferred = channel.transferTo(position, count, outChannel);
+					if (numTransferred <= 0) {
+						// the file is shorter than it was
+						break;
+					}
+					position += numTransferred;
+					count -= numTransferred;
+				}
+			}
+			finally {
+				channel.close();
+			}
+			return;
+		}
+		// jetty closes this when it reaches the end or sending fails
+		FileRangeChannel content = new FileRangeChannel(channel, position, position+count);
+		if (!request.isAsyncSupported()) {
+			try {
+				((HttpOutput) out).sendContent(content);
+			}
+			finally {
+				content.close();
+			}
+			return;
+		}
+		((HttpOutput) out).sendContent(content, createCompleteCallback(request.startAsync()));
+	}
+	
+	/**
+	 * Create the callback for an asynchronous send, which completes the request once it has finished.
+	 * @param asyncContext
+	 * @return
+	 */
+	private static Callback createCompleteCallback(final AsyncContext asyncContext) {
+		// the connection idle timeout still applies if the client stops reading
+		asyncContext.setTimeout(0);
+		return new Callback() {
+			@Override
+			public void succeeded() {
+				asyncContext.complete();
+			}
+			
+			@Override
+			public void failed(Throwable x) {
+				// most likely the client disconnected
+				logger.debug("Failed to send file: "+x);
+				asyncContext.complete();
+			}
+		};
+	}
+	
+	/**
+	 * Determine if an If-None-Match header contains the etag.
+	 * @param ifNoneMatch
+	 * @param etag
+	 * @return
+	 */
+	private static boolean matchesEtag(String ifNoneMatch, String etag) {
+		if (ifNoneMatch == null) {
+			return false;
+		}
+		for (String value : ifNoneMatch.split(",")) {
+			value = value.trim();
+			if (value.equals("*") || value.equals(etag) || value.equals("W/"+etag)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Parse a Range header containing a single range.
+	 * @param range
+	 * @param length The length of the content.
+	 * @return The first and last byte positions, an empty array if the range can't be satisfied,
+	 *         or null if the header isn't supported and the whole content should be sent.
+	 */
+	private static long[] parseRange(String range, long length) {
+		Matcher matcher = RANGE_PATTERN.matcher(range.trim());
+		if (!matcher.matches()) {
+			// invalid, or more than one range
+			return null;
+		}
+		String startStr = matcher.group(1);
+		String endStr = matcher.group(2);
+		try {
+			long start;
+			long end;
+			if (startStr.isEmpty()) {
+				if (endStr.isEmpty()) {
+					return null;
+				}
+				// the last n bytes
+				long suffixLength = Long.parseLong(endStr);
+				if (suffixLength == 0) {
+					return new long[0];
+				}
+				start = Math.max(0, length-suffixLength);
+				end = length-1;
+			}
+			else {
+				start = Long.parseLong(startStr);
+				end = endStr.isEmpty() ? length-1 : Math.min(Long.parseLong(endStr), length-1);
+				if (end < start) {
+					return start >= length ? new long[0] : null;
+				}
+			}
+			if (start >= length) {
+				return new long[0];
+			}
+			return new long[]{start, end};
+		}
+		catch(NumberFormatException e) {
+			// too big
+			return null;
+		}
+	}
+		
+	/**
+	 * Reads part of a file, from the start position up to (but not including) the end position.
+	 */
+	private static class FileRangeChannel implements ReadableByteChannel {
+		
+		private final FileChannel channel;
+		private long position;
+		private final long end;
+		
+		public FileRangeChannel(FileChannel channel, long start, long end) {
+			this.channel = channel;
+			this.position = start;
+			this.end = end;
+		}
+		
+		@Override
+		public int read(ByteBuffer dst) throws IOException {
+			if (position >= end) {
+				return -1;
+			}
+			int limit = dst.limit();
+			dst.limit(dst.position() + (int) Math.min(dst.remaining(), end-position));
+			try {
+				int numRead = channel.read(dst, position);
+				if (numRead > 0) {
+					position += numRead;
+				}
+				return numRead;
+			}
+			finally {
+				dst.limit(limit);
+			}
+		}
+		
+		@Override
+		public boolean isOpen() {
+			return channel.isOpen();
+		}
+		
+		@Override
+		public void close() throws IOException {
+			channel.close();
+		}
+	}
+	
+}
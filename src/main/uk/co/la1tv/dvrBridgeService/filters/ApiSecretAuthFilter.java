@@ -12,6 +12,8 @@ import org.springframework.core.annotation.Order;
 import org.springframework.stereotype.Component;
 import org.springframework.web.filter.OncePerRequestFilter;
 
+import uk.co.la1tv.dvrBridgeService.controllers.SegmentController;
+
 @Component
 @Order(1)
 public class ApiSecretAuthFilter extends OncePerRequestFilter  {
@@ -19,6 +21,25 @@ public class ApiSecretAuthFilter extends OncePerRequestFilter  {
 	@Value("${auth.secret}")
 	private String secret;
 	
+	@Value("${app.serveFiles}")
+	private boolean serveFiles;
+	
+	@Override
+	protected boolean shouldNotFilter(HttpServletRequest request) throws ServletException {
+		if (!serveFiles) {
+			return false;
+		}
+		// files are served to viewers, who don't have the secret
+		// the raw uri could contain "../" (or an encoded version of it) to get to a different
+		// path, so never exempt those, and check the decoded path that the request will be mapped with
+		String rawPath = request.getRequestURI().toLowerCase();
+		if (rawPath.contains("..") || rawPath.contains("%2e") || rawPath.contains("%2f") || rawPath.contains("%5c") || rawPath.contains(";")) {
+			return false;
+		}
+		String path = request.getServletPath() + (request.getPathInfo() != null ? request.getPathInfo() : "");
+		return path.startsWith(SegmentController.PATH+"/") && !path.contains("..");
+	}
+	
 	@Override
 	protected void doFilterInternal(HttpServletRequest request,
 			HttpServletResponse response, FilterChain filterChain) throws ServletException, IOException {
@@ -30,15 +30,31 @@ public class StartRequestHandler implements IRequestHandler {
 			throw(new InternalServerErrorException("\"hlsPlaylistUrl\" parameter is missing from the request url and is required."));
 		}
 		
-		// the url of the remote playlist
-		String hlsPlaylistUrlStr = requestParameters.get("hlsPlaylistUrl")[0];
-		URL hlsPlaylistUrl;
-		try {
-			hlsPlaylistUrl = new URL(hlsPlaylistUrlStr);
-		} catch (MalformedURLException e) {
-			throw(new InternalServerErrorException("The provided hls playlist url is invalid."));
+		// the urls of the remote playlist. There can be several equivalent urls (e.g. a primary and backup origin)
+		// in which case the first one is the primary one
+		URL[] hlsPlaylistUrls = new URL[tmp.length];
+		for (int i=0; i<tmp.length; i++) {
+			try {
+				hlsPlaylistUrls[i] = new URL(tmp[i]);
+			} catch (MalformedURLException e) {
+				throw(new InternalServerErrorException("The provided hls playlist url is invalid."));
+			}
 		}
-		ISiteStream stream = streamManager.createStream(streamId, hlsPlaylistUrl);
+		
+		// if set only this many seconds of the stream are kept, instead of the whole capture
+		int windowDuration = 0;
+		tmp = requestParameters.get("windowDuration");
+		if (tmp != null) {
+			try {
+				windowDuration = Integer.parseInt(tmp[0]);
+			} catch (NumberFormatException e) {
+				throw(new InternalServerErrorException("The provided window duration is invalid."));
+			}
+			if (windowDuration < 0) {
+				throw(new InternalServerErrorException("The provided window duration is invalid."));
+			}
+		}
+		ISiteStream stream = streamManager.createStream(streamId, hlsPlaylistUrls, windowDuration);
 		if (stream == null) {
 			throw(new InternalServerErrorException("Unable to start capture for some reason."));
 		}
@@ -0,0 +1,17 @@
+package uk.co.la1tv.dvrBridgeService.helpers;
+
+import uk.co.la1tv.dvrBridgeService.m3u8Parser.M3u8MediaPlaylist;
+
+public interface IMediaPlaylistCallback {
+	
+	/**
+	 * Called when the media playlist has been retrieved and parsed.
+	 * @param playlist
+	 */
+	void onMediaPlaylistRetrieved(M3u8MediaPlaylist playlist);
+	
+	/**
+	 * Called when there was an error retrieving or parsing the playlist, or it was not a media playlist.
+	 */
+	void onMediaPlaylistRequestFailed();
+}
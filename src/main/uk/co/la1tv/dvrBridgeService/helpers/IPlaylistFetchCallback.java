@@ -0,0 +1,15 @@
+package uk.co.la1tv.dvrBridgeService.helpers;
+
+public interface IPlaylistFetchCallback {
+	
+	/**
+	 * Called when the playlist has been retrieved.
+	 * @param result
+	 */
+	void onPlaylistFetched(PlaylistFetcher.Result result);
+	
+	/**
+	 * Called when the request failed or the server responded with an error.
+	 */
+	void onPlaylistFetchFailed();
+}
@@ -3,6 +3,18 @@ package uk.co.la1tv.dvrBridgeService.helpers;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.URL;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 
 import org.apache.commons.exec.CommandLine;
 import org.apache.commons.exec.DefaultExecutor;
@@ -12,28 +24,416 @@ import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 import org.json.simple.JSONValue;
 import org.json.simple.parser.ParseException;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 import uk.co.la1tv.dvrBridgeService.hlsRecorder.exceptions.PlaylistRequestException;
+import uk.co.la1tv.dvrBridgeService.m3u8Parser.M3u8MasterPlaylist;
+import uk.co.la1tv.dvrBridgeService.m3u8Parser.M3u8MediaPlaylist;
+import uk.co.la1tv.dvrBridgeService.m3u8Parser.M3u8ParseException;
+import uk.co.la1tv.dvrBridgeService.m3u8Parser.M3u8Parser;
+import uk.co.la1tv.dvrBridgeService.m3u8Parser.M3u8Playlist;
+import uk.co.la1tv.dvrBridgeService.m3u8Parser.M3u8Segment;
+import uk.co.la1tv.dvrBridgeService.m3u8Parser.M3u8StreamInfo;
 
 @Service
 public class M3u8ParserHelper {
 	
 	private static Logger logger = Logger.getLogger(M3u8ParserHelper.class);
 	
+	@Autowired
+	private PlaylistFetcher playlistFetcher;
+	
+	@Value("${m3u8Parser.useNodeParser}")
+	private boolean useNodeParser;
+	
+	@Value("${m3u8Parser.nodeParserNumThreads}")
+	private int nodeParserNumThreads;
+	
+	@Value("${m3u8Parser.cacheTtl}")
+	private int cacheTtl;
+	
+	// the number of playlists that are kept in the cache in addition to the reserved entries
+	@Value("${m3u8Parser.cacheSize}")
+	private int cacheSize;
+	
 	@Value("${m3u8Parser.nodePath}")
 	private String nodePath;
 	
 	@Value("${m3u8Parser.applicationJsPath}")
 	private String m3u8ParserApplicationPath;
 	
+	// the last response for each playlist url. Least recently used first.
+	private final LinkedHashMap<String, CachedPlaylist> cache = new LinkedHashMap<String, CachedPlaylist>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, CachedPlaylist> eldest) {
+			return size() > getMaxCacheSize();
+		}
+	};
+	// the number of entries reserved for playlists that are being polled (see reserveCacheEntry())
+	private int numReservedCacheEntries = 0;
+	
+	// number of times a playlist was returned from the cache without making a request
+	private final AtomicLong cacheHits = new AtomicLong(0);
+	// number of times a request was made but the playlist had not changed so did not need parsing
+	private final AtomicLong notModifiedCount = new AtomicLong(0);
+	// number of times a playlist had to be parsed
+	private final AtomicLong cacheMisses = new AtomicLong(0);
+	// runs the node parser for getMediaPlaylistAsync(), because the process has to be waited for.
+	// Only created if the node parser is enabled
+	private ExecutorService nodeParserExecutor = null;
+	
+	@PostConstruct
+	private void onPostConstruct() {
+		if (!useNodeParser) {
+			return;
+		}
+		final AtomicInteger count = new AtomicInteger(0);
+		nodeParserExecutor = Executors.newFixedThreadPool(nodeParserNumThreads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "node-m3u8-parser-"+count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+	
+	@PreDestroy
+	private void onPreDestroy() {
+		if (nodeParserExecutor != null) {
+			nodeParserExecutor.shutdownNow();
+		}
+	}
+	
 	/**
-	 * Make request to get variant playlist, parse it, and return info.
+	 * Make request to get the playlist, parse it, and return it.
+	 * If the same playlist was parsed recently the cached result is returned without making a request.
 	 * @return
 	 * @throws PlaylistRequestException 
 	 */
-	public JSONObject getPlaylistInfo(URL playlistUrl) throws PlaylistRequestException {
+	public M3u8Playlist getPlaylist(URL playlistUrl) throws PlaylistRequestException {
+		if (useNodeParser) {
+			cacheMisses.incrementAndGet();
+			return convertNodePlaylistInfo(getPlaylistInfoFromNode(playlistUrl));
+		}
+		String key = playlistUrl.toExternalForm();
+		CachedPlaylist cached = getCachedPlaylist(key);
+		if (cached != null && cached.playlist != null && cached.isFresh()) {
+			cacheHits.incrementAndGet();
+			return cached.playlist;
+		}
+		return handlePlaylistResult(key, cached, fetch(playlistUrl, cached));
+	}
+	
+	/**
+	 * Make request to get the media playlist, parse it, and return it.
+	 * @return
+	 * @throws PlaylistRequestException If the request failed or the playlist is not a media playlist.
+	 */
+	public M3u8MediaPlaylist getMediaPlaylist(URL playlistUrl) throws PlaylistRequestException {
+		return getMediaPlaylist(playlistUrl, null);
+	}
+	
+	/**
+	 * Make request to get the media playlist, and parse only the segments that have been
+	 * added since the previous version of the playlist.
+	 * If the playlist has not changed it is not parsed at all.
+	 * If previous is null the whole playlist is parsed.
+	 * @param playlistUrl
+	 * @param previous The previous result for this playlist, or null.
+	 * @return
+	 * @throws PlaylistRequestException If the request failed or the playlist is not a media playlist.
+	 */
+	public M3u8MediaPlaylist getMediaPlaylist(URL playlistUrl, M3u8MediaPlaylist previous) throws PlaylistRequestException {
+		if (useNodeParser) {
+			return toMediaPlaylist(getPlaylist(playlistUrl));
+		}
+		String key = playlistUrl.toExternalForm();
+		CachedPlaylist cached = getCachedPlaylist(key);
+		M3u8MediaPlaylist freshPlaylist = getFreshMediaPlaylist(cached, previous);
+		if (freshPlaylist != null) {
+			return freshPlaylist;
+		}
+		return handleMediaPlaylistResult(key, previous, cached, fetch(playlistUrl, cached));
+	}
+	
+	/**
+	 * The same as getMediaPlaylist() but the request is made asynchronously, so no thread is
+	 * blocked waiting for the response.
+	 * The callback is called on an http client thread, or on this thread if the result was cached.
+	 * The node parser is run as a separate process which has to be waited for, so if that is enabled
+	 * it is run on one of its own threads and the callback is called from there.
+	 * @param playlistUrl
+	 * @param previous The previous result for this playlist, or null.
+	 * @param callback
+	 */
+	public void getMediaPlaylistAsync(final URL playlistUrl, final M3u8MediaPlaylist previous, final IMediaPlaylistCallback callback) {
+		if (useNodeParser) {
+			nodeParserExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					M3u8MediaPlaylist mediaPlaylist;
+					try {
+						mediaPlaylist = getMediaPlaylist(playlistUrl, previous);
+					} catch (PlaylistRequestException e) {
+						callback.onMediaPlaylistRequestFailed();
+						return;
+					}
+					callback.onMediaPlaylistRetrieved(mediaPlaylist);
+				}
+			});
+			return;
+		}
+		M3u8MediaPlaylist freshPlaylist;
+		final String key = playlistUrl.toExternalForm();
+		final CachedPlaylist cached = getCachedPlaylist(key);
+		try {
+			freshPlaylist = getFreshMediaPlaylist(cached, previous);
+		} catch (PlaylistRequestException e) {
+			callback.onMediaPlaylistRequestFailed();
+			return;
+		}
+		if (freshPlaylist != null) {
+			callback.onMediaPlaylistRetrieved(freshPlaylist);
+			return;
+		}
+		IPlaylistFetchCallback fetchCallback = new IPlaylistFetchCallback() {
+			@Override
+			public void onPlaylistFetched(PlaylistFetcher.Result result) {
+				M3u8MediaPlaylist mediaPlaylist;
+				try {
+					mediaPlaylist = handleMediaPlaylistResult(key, previous, cached, result);
+				} catch (PlaylistRequestException e) {
+					callback.onMediaPlaylistRequestFailed();
+					return;
+				}
+				callback.onMediaPlaylistRetrieved(mediaPlaylist);
+			}
+			
+			@Override
+			public void onPlaylistFetchFailed() {
+				callback.onMediaPlaylistRequestFailed();
+			}
+		};
+		if (cached == null) {
+			playlistFetcher.fetchAsync(playlistUrl, null, null, fetchCallback);
+		}
+		else {
+			playlistFetcher.fetchAsync(playlistUrl, cached.etag, cached.lastModified, fetchCallback);
+		}
+	}
+	
+	/**
+	 * Make request to get the master (variant) playlist, parse it, and return it.
+	 * @return
+	 * @throws PlaylistRequestException If the request failed or the playlist is not a master playlist.
+	 */
+	public M3u8MasterPlaylist getMasterPlaylist(URL playlistUrl) throws PlaylistRequestException {
+		M3u8Playlist playlist = getPlaylist(playlistUrl);
+		if (!playlist.isMasterPlaylist()) {
+			logger.warn("Expected a master playlist but received a media playlist.");
+			throw(new PlaylistRequestException());
+		}
+		return (M3u8MasterPlaylist) playlist;
+	}
+	
+	/**
+	 * Make the cache one entry bigger, for a playlist that is going to be requested repeatedly.
+	 * The cache grows with the number of playlists being polled, so that however many there are
+	 * they never evict each other, and every poll can make a conditional request.
+	 * releaseCacheEntry() should be called when the playlist is no longer being requested.
+	 */
+	public void reserveCacheEntry() {
+		synchronized(cache) {
+			numReservedCacheEntries++;
+		}
+	}
+	
+	/**
+	 * Undo a call to reserveCacheEntry(), evicting the least recently used playlist if the cache
+	 * is now too big.
+	 */
+	public void releaseCacheEntry() {
+		synchronized(cache) {
+			numReservedCacheEntries--;
+			Iterator<CachedPlaylist> it = cache.values().iterator();
+			while (cache.size() > getMaxCacheSize() && it.hasNext()) {
+				it.next();
+				it.remove();
+			}
+		}
+	}
+	
+	/**
+	 * Get the number of playlists in the cache.
+	 * @return
+	 */
+	public int getCacheSize() {
+		synchronized(cache) {
+			return cache.size();
+		}
+	}
+	
+	/**
+	 * Get the number of times a playlist was returned from the cache without making a request.
+	 * @return
+	 */
+	public long getCacheHitCount() {
+		return cacheHits.get();
+	}
+	
+	/**
+	 * Get the number of times a playlist was requested but had not changed, so was not parsed.
+	 * @return
+	 */
+	public long getNotModifiedCount() {
+		return notModifiedCount.get();
+	}
+	
+	/**
+	 * Get the number of times a playlist had to be parsed.
+	 * @return
+	 */
+	public long getCacheMissCount() {
+		return cacheMisses.get();
+	}
+	
+	/**
+	 * Make a request for the playlist. If there is a cached version the request will be
+	 * conditional on the playlist having changed since then.
+	 */
+	private PlaylistFetcher.Result fetch(URL playlistUrl, CachedPlaylist cached) throws PlaylistRequestException {
+		if (cached == null) {
+			return playlistFetcher.fetch(playlistUrl, null, null);
+		}
+		return playlistFetcher.fetch(playlistUrl, cached.etag, cached.lastModified);
+	}
+	
+	/**
+	 * Get the media playlist from the cache if it is recent enough to be used without making a
+	 * request, otherwise null.
+	 */
+	private M3u8MediaPlaylist getFreshMediaPlaylist(CachedPlaylist cached, M3u8MediaPlaylist previous) throws PlaylistRequestException {
+		if (cached == null || !cached.isFresh()) {
+			return null;
+		}
+		if (previous == null || previous.getBody() == null) {
+			if (cached.playlist == null) {
+				return null;
+			}
+			cacheHits.incrementAndGet();
+			return toMediaPlaylist(cached.playlist);
+		}
+		if (cached.body != previous.getBody()) {
+			return null;
+		}
+		cacheHits.incrementAndGet();
+		return M3u8Parser.unchanged(previous);
+	}
+	
+	/**
+	 * Parse the playlist from the response (unless it has not changed) and cache it.
+	 */
+	private M3u8Playlist handlePlaylistResult(String key, CachedPlaylist cached, PlaylistFetcher.Result result) throws PlaylistRequestException {
+		byte[] body = getBody(result, cached);
+		if (cached != null && cached.playlist != null && body == cached.body) {
+			// not changed so no need to parse it again
+			notModifiedCount.incrementAndGet();
+			putCachedPlaylist(key, new CachedPlaylist(body, cached.playlist, result));
+			return cached.playlist;
+		}
+		
+		M3u8Playlist playlist;
+		try {
+			playlist = M3u8Parser.parse(body);
+		} catch (M3u8ParseException e) {
+			e.printStackTrace();
+			logger.warn("Error trying to parse playlist.");
+			throw(new PlaylistRequestException());
+		}
+		cacheMisses.incrementAndGet();
+		putCachedPlaylist(key, new CachedPlaylist(body, playlist, result));
+		return playlist;
+	}
+	
+	/**
+	 * Parse the segments in the response that are new since the previous version of the
+	 * media playlist, and cache it.
+	 * If previous is null the whole playlist is parsed.
+	 */
+	private M3u8MediaPlaylist handleMediaPlaylistResult(String key, M3u8MediaPlaylist previous, CachedPlaylist cached, PlaylistFetcher.Result result) throws PlaylistRequestException {
+		if (previous == null || previous.getBody() == null) {
+			return toMediaPlaylist(handlePlaylistResult(key, cached, result));
+		}
+		byte[] body = getBody(result, cached);
+		if (body == previous.getBody() || Arrays.equals(body, previous.getBody())) {
+			// not changed so no need to parse it again
+			notModifiedCount.incrementAndGet();
+			putCachedPlaylist(key, new CachedPlaylist(previous.getBody(), cached != null && cached.body == previous.getBody() ? cached.playlist : null, result));
+			return M3u8Parser.unchanged(previous);
+		}
+		
+		M3u8Playlist playlist;
+		try {
+			playlist = M3u8Parser.parseIncremental(body, previous);
+		} catch (M3u8ParseException e) {
+			e.printStackTrace();
+			logger.warn("Error trying to parse playlist.");
+			throw(new PlaylistRequestException());
+		}
+		cacheMisses.incrementAndGet();
+		// the result may only contain some of the segments so it can't be returned from getPlaylist()
+		putCachedPlaylist(key, new CachedPlaylist(body, null, result));
+		return toMediaPlaylist(playlist);
+	}
+	
+	private M3u8MediaPlaylist toMediaPlaylist(M3u8Playlist playlist) throws PlaylistRequestException {
+		if (playlist.isMasterPlaylist()) {
+			logger.warn("Expected a media playlist but received a master playlist.");
+			throw(new PlaylistRequestException());
+		}
+		return (M3u8MediaPlaylist) playlist;
+	}
+	
+	/**
+	 * Get the playlist contents from the result. If the contents are the same as the cached
+	 * version then the cached array is returned.
+	 */
+	private byte[] getBody(PlaylistFetcher.Result result, CachedPlaylist cached) {
+		if (cached != null && (result.isNotModified() || Arrays.equals(result.getBody(), cached.body))) {
+			return cached.body;
+		}
+		return result.getBody();
+	}
+	
+	// must be called while synchronized on the cache
+	private int getMaxCacheSize() {
+		return cacheSize + numReservedCacheEntries;
+	}
+	
+	private CachedPlaylist getCachedPlaylist(String key) {
+		synchronized(cache) {
+			return cache.get(key);
+		}
+	}
+	
+	private void putCachedPlaylist(String key, CachedPlaylist cachedPlaylist) {
+		synchronized(cache) {
+			cache.put(key, cachedPlaylist);
+		}
+	}
+	
+	/**
+	 * Get the playlist information using the node m3u8 parser application.
+	 * @param playlistUrl
+	 * @return
+	 * @throws PlaylistRequestException
+	 */
+	private JSONObject getPlaylistInfoFromNode(URL playlistUrl) throws PlaylistRequestException {
 		String playlistUrlString = playlistUrl.toExternalForm();
 		
 		ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
@@ -68,13 +468,81 @@ public class M3u8ParserHelper {
 		return playlistInfo;
 	}
 	
-	public boolean isVariantPlaylist(URL playlistUrl) throws PlaylistRequestException {
-		JSONObject info = getPlaylistInfo(playlistUrl);
+	/**
+	 * Convert the output from the node m3u8 parser application to a playlist object.
+	 * @param info
+	 * @return
+	 * @throws PlaylistRequestException
+	 */
+	private M3u8Playlist convertNodePlaylistInfo(JSONObject info) throws PlaylistRequestException {
 		try {
-			return !((JSONArray)((JSONObject) info.get("items")).get("StreamItem")).isEmpty();
+			JSONObject items = (JSONObject) info.get("items");
+			JSONArray streamItems = (JSONArray) items.get("StreamItem");
+			if (streamItems != null && !streamItems.isEmpty()) {
+				M3u8StreamInfo[] streams = new M3u8StreamInfo[streamItems.size()];
+				for (int i=0; i<streamItems.size(); i++) {
+					JSONObject streamItem = (JSONObject) streamItems.get(i);
+					JSONObject attributes = (JSONObject) ((JSONObject) streamItem.get("attributes")).get("attributes");
+					int bandwidth = ((Number) attributes.get("bandwidth")).intValue();
+					String codecs = (String) attributes.get("codecs");
+					JSONArray resolution = (JSONArray) attributes.get("resolution");
+					int width = resolution == null ? -1 : ((Number) resolution.get(0)).intValue();
+					int height = resolution == null ? -1 : ((Number) resolution.get(1)).intValue();
+					String uri = (String) ((JSONObject) streamItem.get("properties")).get("uri");
+					streams[i] = new M3u8StreamInfo(uri, bandwidth, codecs, width, height);
+				}
+				return new M3u8MasterPlaylist(streams);
+			}
+			
+			JSONObject properties = (JSONObject) info.get("properties");
+			Number mediaSequence = (Number) properties.get("mediaSequence");
+			Number targetDuration = (Number) properties.get("targetDuration");
+			JSONArray playlistItems = (JSONArray) items.get("PlaylistItem");
+			M3u8Segment[] segments = new M3u8Segment[playlistItems.size()];
+			for (int i=0; i<playlistItems.size(); i++) {
+				JSONObject itemProperties = (JSONObject) ((JSONObject) playlistItems.get(i)).get("properties");
+				float duration = ((Number) itemProperties.get("duration")).floatValue();
+				Boolean discontinuity = (Boolean) itemProperties.get("discontinuity");
+				segments[i] = new M3u8Segment((String) itemProperties.get("uri"), duration, discontinuity != null && discontinuity);
+			}
+			// the node parser does not provide the end list tag
+			return new M3u8MediaPlaylist(mediaSequence == null ? 0 : mediaSequence.intValue(), targetDuration == null ? -1 : targetDuration.floatValue(), false, segments);
 		}
 		catch(Exception e) {
-			return false;
+			e.printStackTrace();
+			logger.warn("Error trying to read playlist information from the node m3u8 parser.");
+			throw(new PlaylistRequestException());
+		}
+	}
+	
+	public boolean isVariantPlaylist(URL playlistUrl) throws PlaylistRequestException {
+		return getPlaylist(playlistUrl).isMasterPlaylist();
+	}
+	
+	/**
+	 * A playlist response that has been cached.
+	 */
+	private class CachedPlaylist {
+		
+		private final byte[] body;
+		// the result of parsing the whole body, or null if it has not been parsed in full
+		private final M3u8Playlist playlist;
+		private final String etag;
+		private final String lastModified;
+		private final long retrievedTime = System.currentTimeMillis();
+		
+		public CachedPlaylist(byte[] body, M3u8Playlist playlist, PlaylistFetcher.Result result) {
+			this.body = body;
+			this.playlist = playlist;
+			this.etag = result.getEtag();
+			this.lastModified = result.getLastModified();
+		}
+		
+		/**
+		 * Determine if this is recent enough to be used without making a request.
+		 */
+		public boolean isFresh() {
+			return retrievedTime + cacheTtl > System.currentTimeMillis();
 		}
 	}
 }
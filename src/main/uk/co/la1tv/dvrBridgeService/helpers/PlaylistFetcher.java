@@ -0,0 +1,216 @@
+package uk.co.la1tv.dvrBridgeService.helpers;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.eclipse.jetty.client.api.ContentResponse;
+import org.eclipse.jetty.client.api.Request;
+import org.eclipse.jetty.client.api.Response;
+import org.eclipse.jetty.client.util.BufferingResponseListener;
+import org.eclipse.jetty.client.util.FutureResponseListener;
+import org.eclipse.jetty.http.HttpHeader;
+import org.eclipse.jetty.http.HttpStatus;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import uk.co.la1tv.dvrBridgeService.hlsRecorder.exceptions.PlaylistRequestException;
+import uk.co.la1tv.dvrBridgeService.http.SharedHttpClient;
+
+/**
+ * Retrieves remote playlist files.
+ * Supports conditional requests so that the body is only transferred if it has changed.
+ * Requests are made with the shared http client so connections to the server are reused.
+ */
+@Service
+public class PlaylistFetcher {
+	
+	private static Logger logger = Logger.getLogger(PlaylistFetcher.class);
+	
+	// the maximum size of a playlist in bytes
+	private static final int MAX_PLAYLIST_SIZE = 16*1024*1024;
+	
+	@Autowired
+	private SharedHttpClient sharedHttpClient;
+	
+	@Value("${m3u8Parser.requestTimeout}")
+	private int requestTimeout;
+	
+	/**
+	 * Download the playlist file.
+	 * If an etag or last modified value is provided from a previous response it will be sent
+	 * with the request, and if the server responds saying the file has not changed the result
+	 * will have no body.
+	 * @param playlistUrl
+	 * @param etag The etag from the previous response, or null.
+	 * @param lastModified The last modified value from the previous response, or null.
+	 * @return
+	 * @throws PlaylistRequestException
+	 */
+	public Result fetch(URL playlistUrl, String etag, String lastModified) throws PlaylistRequestException {
+		String protocol = playlistUrl.getProtocol();
+		if (!protocol.equals("http") && !protocol.equals("https")) {
+			return fetchWithoutHttp(playlistUrl);
+		}
+		try {
+			Request request = createRequest(playlistUrl, etag, lastModified);
+			FutureResponseListener listener = new FutureResponseListener(request, MAX_PLAYLIST_SIZE);
+			request.send(listener);
+			ContentResponse response = listener.get();
+			return handleResponse(response, response.getContent(), etag, lastModified);
+		} catch (URISyntaxException | InterruptedException | ExecutionException e) {
+			e.printStackTrace();
+			logger.warn("Error trying to retrieve playlist.");
+			throw(new PlaylistRequestException());
+		}
+	}
+	
+	/**
+	 * The same as fetch() but returns straight away without waiting for the response.
+	 * The callback is called on an http client thread when the request completes, or on
+	 * this thread if the url isn't http.
+	 * @param playlistUrl
+	 * @param etag The etag from the previous response, or null.
+	 * @param lastModified The last modified value from the previous response, or null.
+	 * @param callback
+	 */
+	public void fetchAsync(URL playlistUrl, final String etag, final String lastModified, final IPlaylistFetchCallback callback) {
+		String protocol = playlistUrl.getProtocol();
+		if (!protocol.equals("http") && !protocol.equals("https")) {
+			Result result;
+			try {
+				result = fetchWithoutHttp(playlistUrl);
+			} catch (PlaylistRequestException e) {
+				callback.onPlaylistFetchFailed();
+				return;
+			}
+			callback.onPlaylistFetched(result);
+			return;
+		}
+		Request request;
+		try {
+			request = createRequest(playlistUrl, etag, lastModified);
+		} catch (URISyntaxException e) {
+			e.printStackTrace();
+			logger.warn("Error trying to retrieve playlist.");
+			callback.onPlaylistFetchFailed();
+			return;
+		}
+		request.send(new BufferingResponseListener(MAX_PLAYLIST_SIZE) {
+			@Override
+			public void onComplete(org.eclipse.jetty.client.api.Result requestResult) {
+				if (requestResult.isFailed()) {
+					logger.warn("Error trying to retrieve playlist. "+requestResult.getFailure().getMessage());
+					callback.onPlaylistFetchFailed();
+					return;
+				}
+				Result result;
+				try {
+					result = handleResponse(requestResult.getResponse(), getContent(), etag, lastModified);
+				} catch (PlaylistRequestException e) {
+					callback.onPlaylistFetchFailed();
+					return;
+				}
+				callback.onPlaylistFetched(result);
+			}
+		});
+	}
+	
+	private Request createRequest(URL playlistUrl, String etag, String lastModified) throws URISyntaxException {
+		Request request = sharedHttpClient.getClient().newRequest(playlistUrl.toURI())
+				.timeout(requestTimeout, TimeUnit.SECONDS);
+		if (etag != null) {
+			request.header(HttpHeader.IF_NONE_MATCH, etag);
+		}
+		if (lastModified != null) {
+			request.header(HttpHeader.IF_MODIFIED_SINCE, lastModified);
+		}
+		return request;
+	}
+	
+	private Result handleResponse(Response response, byte[] content, String etag, String lastModified) throws PlaylistRequestException {
+		int responseCode = response.getStatus();
+		if (responseCode == HttpStatus.NOT_MODIFIED_304 && (etag != null || lastModified != null)) {
+			return new Result(null, etag, lastModified);
+		}
+		if (responseCode != HttpStatus.OK_200) {
+			logger.warn("Error trying to retrieve playlist. Response code was "+responseCode+".");
+			throw(new PlaylistRequestException());
+		}
+		return new Result(content, response.getHeaders().get(HttpHeader.ETAG), response.getHeaders().get(HttpHeader.LAST_MODIFIED));
+	}
+	
+	/**
+	 * Read a playlist from a url which isn't http (e.g. a file).
+	 * @param playlistUrl
+	 * @return
+	 * @throws PlaylistRequestException
+	 */
+	private Result fetchWithoutHttp(URL playlistUrl) throws PlaylistRequestException {
+		try {
+			ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+			InputStream inputStream = playlistUrl.openStream();
+			try {
+				byte[] buffer = new byte[8192];
+				int numRead;
+				while ((numRead = inputStream.read(buffer)) != -1) {
+					outputStream.write(buffer, 0, numRead);
+				}
+			}
+			finally {
+				inputStream.close();
+			}
+			return new Result(outputStream.toByteArray(), null, null);
+		} catch (IOException e) {
+			e.printStackTrace();
+			logger.warn("Error trying to retrieve playlist.");
+			throw(new PlaylistRequestException());
+		}
+	}
+	
+	/**
+	 * The result of a playlist request.
+	 */
+	public static class Result {
+		
+		private final byte[] body;
+		private final String etag;
+		private final String lastModified;
+		
+		public Result(byte[] body, String etag, String lastModified) {
+			this.body = body;
+			this.etag = etag;
+			this.lastModified = lastModified;
+		}
+		
+		/**
+		 * True if the server responded saying the playlist has not changed.
+		 * @return
+		 */
+		public boolean isNotModified() {
+			return body == null;
+		}
+		
+		/**
+		 * Get the contents of the playlist, or null if it was not modified.
+		 * @return
+		 */
+		public byte[] getBody() {
+			return body;
+		}
+		
+		public String getEtag() {
+			return etag;
+		}
+		
+		public String getLastModified() {
+			return lastModified;
+		}
+	}
+}
@@ -1,120 +1,939 @@
 package uk.co.la1tv.dvrBridgeService.hlsRecorder;
 
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.net.URL;
-import java.nio.channels.Channels;
-import java.nio.channels.ReadableByteChannel;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.PostConstruct;
 
 import org.apache.log4j.Logger;
+import org.eclipse.jetty.client.api.Request;
+import org.eclipse.jetty.client.api.Response;
+import org.eclipse.jetty.client.api.Result;
+import org.eclipse.jetty.http.HttpHeader;
+import org.eclipse.jetty.http.HttpStatus;
+import org.eclipse.jetty.util.Callback;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import uk.co.la1tv.dvrBridgeService.http.SharedHttpClient;
+import uk.co.la1tv.dvrBridgeService.scheduling.ScheduledTask;
+import uk.co.la1tv.dvrBridgeService.scheduling.SharedScheduler;
+import uk.co.la1tv.dvrBridgeService.servableFiles.SegmentCache;
+import uk.co.la1tv.dvrBridgeService.servableFiles.ServableFileGenerator;
+
 /**
  * Handles all file downloads.
+ * Downloads are performed asynchronously using the shared http client so a small number
+ * of threads can handle a large number of downloads at the same time.
+ * 
+ * The number of downloads in progress is limited, both in total and per host, and any
+ * others wait in a queue until there is space. The per host limit counts the requests that are
+ * in progress to each host, so a download holds a slot for whichever url it is currently fetching.
+ * A download only leaves the queue when the host of its first url has a free slot, and a hedged
+ * request is only made if the host of the next url has one, but retries and requests to the next
+ * url after a failure are always made so the per host limit can briefly be exceeded.
+ * 
+ * When a file is available at several urls (e.g. a primary and backup origin) and the
+ * first one is slow to respond, a request is also made to the next one and whichever
+ * responds first is used.
+ * 
+ * The rate that data is received at can be limited in total, per host and per capture.
+ * Segments near the live edge can go over the limits by a small amount, so that downloads
+ * which are catching up are slowed down before them.
+ * 
+ * Files are written to a temporary file which is only moved to the destination once it is complete,
+ * and are also written to the SegmentCache if there is space.
+ * 
+ * If segment deduplication is enabled the content of each file is hashed as it is written,
+ * and the hash is passed to the completion callback.
  */
 @Service
 public class DownloadManager {
 
 	private static Logger logger = Logger.getLogger(DownloadManager.class);
 	
+	// no attempt will be started with less than this amount of time (milliseconds) before the deadline
+	private static final long MIN_ATTEMPT_TIME = 1000;
+	// segments within this many of the newest one in a group are considered to be at the live edge
+	private static final int NUM_LIVE_EDGE_SEGMENTS = 3;
+	
+	@Autowired
+	private SharedHttpClient sharedHttpClient;
+	
+	@Autowired
+	private SharedScheduler scheduler;
+	
+	@Autowired
+	private SegmentFileCommitter segmentFileCommitter;
+	
+	@Autowired
+	private SegmentCache segmentCache;
+	
 	@Value("${app.downloadTimeout}")
 	private int downloadTimeout;
+	@Value("${app.downloadReadTimeout}")
+	private int downloadReadTimeout;
 	@Value("${app.downloadRetryCount}")
 	private int downloadRetryCount;
+	@Value("${app.downloadDeadline}")
+	private int downloadDeadline;
+	@Value("${app.downloadRetryBaseDelay}")
+	private long downloadRetryBaseDelay;
+	@Value("${app.downloadRetryMaxDelay}")
+	private long downloadRetryMaxDelay;
+	@Value("${app.downloadHedgeDelay}")
+	private long downloadHedgeDelay;
+	@Value("${app.maxDownloadRate}")
+	private long maxDownloadRate;
+	@Value("${app.maxDownloadRatePerHost}")
+	private long maxDownloadRatePerHost;
+	@Value("${app.maxDownloadRatePerCapture}")
+	private long maxDownloadRatePerCapture;
+	@Value("${app.liveEdgeBorrowAllowance}")
+	private long liveEdgeBorrowAllowance;
+	@Value("${app.maxConcurrentDownloads}")
+	private int maxConcurrentDownloads;
+	@Value("${app.maxConcurrentDownloadsPerHost}")
+	private int maxConcurrentDownloadsPerHost;
+	@Value("${app.segmentDeduplication}")
+	private boolean hashDownloads;
 	
-	private ExecutorService executor = null;
+	private final Object lock = new Object();
+	// groups which have downloads waiting to start, in the order they will get their next turn
+	private final ArrayDeque<DownloadGroup> groupsWithQueuedDownloads = new ArrayDeque<>();
+	// the number of requests in progress to each host. Key is the scheme, host and port
+	private final HashMap<String, Integer> numActiveRequestsPerHost = new HashMap<>();
+	private final AtomicLong nextQueuePosition = new AtomicLong(0);
+	private int numQueuedDownloads = 0;
+	private int numActiveDownloads = 0;
+	private long numDownloadsStarted = 0;
+	private long totalQueueWaitTime = 0;
+	private volatile long lastQueueWaitTime = 0;
+	private final AtomicLong numHedgedRequests = new AtomicLong(0);
+	private TokenBucket tokenBucket = null;
+	// key is the scheme, host and port
+	private final HashMap<String, TokenBucket> tokenBucketsPerHost = new HashMap<>();
+	private final AtomicLong numThrottles = new AtomicLong(0);
+	private final AtomicLong totalThrottleTime = new AtomicLong(0);
+	private final AtomicLong numHedgedRequestWins = new AtomicLong(0);
 	
 	@PostConstruct
 	private void onPostConstruct() {
-		executor = Executors.newCachedThreadPool();
+		tokenBucket = new TokenBucket(maxDownloadRate, liveEdgeBorrowAllowance);
+	}
+	
+	/**
+	 * Create a group which downloads can be queued in.
+	 * Downloads from different groups get an equal share of the available downloads,
+	 * so one group with a lot of downloads cannot hold up the others.
+	 * @return
+	 */
+	public DownloadGroup createGroup() {
+		return new DownloadGroup(new TokenBucket(maxDownloadRatePerCapture, liveEdgeBorrowAllowance));
 	}
 	
 	/**
 	 * Queue a download. The completionCallback will be informed when the download has completed.
-	 * @param source
+	 * Within a group downloads with the lowest sequence number are started first.
+	 * @param sources The urls the file can be downloaded from, with the primary one first.
 	 * @param destination
 	 * @param completionCalback
+	 * @param group The group to queue the download in.
+	 * @param sequenceNumber
+	 */
+	public void queueDownload(URL[] sources, File destination, IHlsSegmentFileDownloadCallback completionCalback, DownloadGroup group, int sequenceNumber) {
+		Downloader downloader = new Downloader(sources, destination, completionCalback, group, sequenceNumber);
+		synchronized(lock) {
+			group.latestSequenceNumber = Math.max(group.latestSequenceNumber, sequenceNumber);
+			if (group.queue.isEmpty()) {
+				groupsWithQueuedDownloads.addLast(group);
+			}
+			group.queue.add(downloader);
+			numQueuedDownloads++;
+		}
+		startDownloads();
+	}
+	
+	public int getNumQueuedDownloads() {
+		synchronized(lock) {
+			return numQueuedDownloads;
+		}
+	}
+	
+	public int getNumActiveDownloads() {
+		synchronized(lock) {
+			return numActiveDownloads;
+		}
+	}
+	
+	/**
+	 * Get the amount of time in milliseconds the last download that started was queued for.
+	 * @return
+	 */
+	public long getLastQueueWaitTime() {
+		return lastQueueWaitTime;
+	}
+	
+	/**
+	 * Get the average amount of time in milliseconds downloads have been queued for.
+	 * @return
+	 */
+	public long getAverageQueueWaitTime() {
+		synchronized(lock) {
+			return numDownloadsStarted == 0 ? 0 : totalQueueWaitTime/numDownloadsStarted;
+		}
+	}
+	
+	/**
+	 * Get the number of extra requests that have been made to alternate urls because the
+	 * first request was slow to respond.
+	 * @return
+	 */
+	public long getNumHedgedRequests() {
+		return numHedgedRequests.get();
+	}
+	
+	/**
+	 * Get the number of times a request to an alternate url responded before the first one.
+	 * @return
+	 */
+	public long getNumHedgedRequestWins() {
+		return numHedgedRequestWins.get();
+	}
+	
+	/**
+	 * Get the rate in bytes per second that all downloads are currently receiving data at.
+	 * @return
+	 */
+	public long getCurrentDownloadRate() {
+		return tokenBucket.getMeasuredRate();
+	}
+	
+	/**
+	 * Get the rate in bytes per second that data is currently being received from each host.
+	 * @return Key is the scheme, host and port.
+	 */
+	public Map<String, Long> getCurrentDownloadRatePerHost() {
+		HashMap<String, Long> rates = new HashMap<>();
+		synchronized(tokenBucketsPerHost) {
+			for (Map.Entry<String, TokenBucket> entry : tokenBucketsPerHost.entrySet()) {
+				rates.put(entry.getKey(), entry.getValue().getMeasuredRate());
+			}
+		}
+		return rates;
+	}
+	
+	/**
+	 * Get the number of times a download has been paused because a rate limit was reached.
+	 * @return
+	 */
+	public long getNumThrottles() {
+		return numThrottles.get();
+	}
+	
+	/**
+	 * Get the total amount of time in milliseconds downloads have been paused for because
+	 * a rate limit was reached.
+	 * @return
+	 */
+	public long getTotalThrottleTime() {
+		return totalThrottleTime.get();
+	}
+	
+	/**
+	 * Take the bytes that have been received from the token buckets.
+	 * @param url The url the bytes came from.
+	 * @param group
+	 * @param sequenceNumber
+	 * @param numBytes
+	 * @return The amount of time in milliseconds to wait before reading any more.
+	 */
+	private long throttle(URL url, DownloadGroup group, int sequenceNumber, long numBytes) {
+		// segments at the live edge can borrow ahead of downloads that are catching up
+		boolean liveEdge = group.latestSequenceNumber - sequenceNumber < NUM_LIVE_EDGE_SEGMENTS;
+		String host = getHost(url);
+		TokenBucket hostTokenBucket;
+		synchronized(tokenBucketsPerHost) {
+			hostTokenBucket = tokenBucketsPerHost.get(host);
+			if (hostTokenBucket == null) {
+				hostTokenBucket = new TokenBucket(maxDownloadRatePerHost, liveEdgeBorrowAllowance);
+				tokenBucketsPerHost.put(host, hostTokenBucket);
+			}
+		}
+		long delay = tokenBucket.take(numBytes, liveEdge);
+		delay = Math.max(delay, hostTokenBucket.take(numBytes, liveEdge));
+		delay = Math.max(delay, group.tokenBucket.take(numBytes, liveEdge));
+		if (delay > 0) {
+			numThrottles.incrementAndGet();
+			totalThrottleTime.addAndGet(delay);
+		}
+		return delay;
+	}
+	
+	/**
+	 * Start as many queued downloads as the limits allow.
+	 * The groups take turns, and each group starts its download with the lowest sequence number,
+	 * which will be the one that is holding up the generated playlist.
+	 */
+	private void startDownloads() {
+		ArrayList<Downloader> downloadersToStart = new ArrayList<>();
+		synchronized(lock) {
+			int numGroupsChecked = 0;
+			while (numActiveDownloads < maxConcurrentDownloads && numGroupsChecked < groupsWithQueuedDownloads.size()) {
+				DownloadGroup group = groupsWithQueuedDownloads.pollFirst();
+				Downloader downloader = group.takeNext();
+				if (!group.queue.isEmpty()) {
+					groupsWithQueuedDownloads.addLast(group);
+				}
+				if (downloader == null) {
+					// all of the queued downloads in this group are for hosts which are busy
+					numGroupsChecked++;
+					continue;
+				}
+				numGroupsChecked = 0;
+				numQueuedDownloads--;
+				numActiveDownloads++;
+				// for the first request, which is made to this host
+				addHostRequest(downloader.host);
+				downloader.hostSlotReserved = true;
+				long waitTime = System.currentTimeMillis() - downloader.queuedTime;
+				lastQueueWaitTime = waitTime;
+				totalQueueWaitTime += waitTime;
+				numDownloadsStarted++;
+				downloadersToStart.add(downloader);
+			}
+		}
+		for (final Downloader downloader : downloadersToStart) {
+			// start in a different thread so that the callback is never called from the thread queueing the download
+			sharedHttpClient.getClient().getExecutor().execute(new Runnable() {
+				@Override
+				public void run() {
+					downloader.start();
+				}
+			});
+		}
+	}
+	
+	/**
+	 * Get the scheme, host and port of a url, which the per host limits are keyed by.
+	 * @param url
+	 * @return
+	 */
+	private static String getHost(URL url) {
+		return url.getProtocol()+"://"+url.getAuthority();
+	}
+	
+	/**
+	 * Must be called with the lock held.
+	 * @param host
+	 * @return
+	 */
+	private boolean hostHasCapacity(String host) {
+		Integer numForHost = numActiveRequestsPerHost.get(host);
+		return numForHost == null || numForHost < maxConcurrentDownloadsPerHost;
+	}
+	
+	/**
+	 * Must be called with the lock held.
+	 * @param host
+	 */
+	private void addHostRequest(String host) {
+		Integer numForHost = numActiveRequestsPerHost.get(host);
+		numActiveRequestsPerHost.put(host, numForHost == null ? 1 : numForHost+1);
+	}
+	
+	/**
+	 * Called when a request to a host has completed, freeing its slot.
+	 * @param host
+	 */
+	private void onHostRequestFinished(String host) {
+		synchronized(lock) {
+			int numForHost = numActiveRequestsPerHost.get(host)-1;
+			if (numForHost == 0) {
+				numActiveRequestsPerHost.remove(host);
+			}
+			else {
+				numActiveRequestsPerHost.put(host, numForHost);
+			}
+		}
+		startDownloads();
+	}
+	
+	private void onDownloadFinished(Downloader downloader) {
+		synchronized(lock) {
+			numActiveDownloads--;
+		}
+		startDownloads();
+	}
+	
+	/**
+	 * Get the position of the first byte from a Content-Range header, or -1 if it is invalid.
+	 * @param contentRange e.g. "bytes 100-199/200"
+	 * @return
+	 */
+	private static long getRangeStart(String contentRange) {
+		if (contentRange == null || !contentRange.startsWith("bytes ")) {
+			return -1;
+		}
+		int end = contentRange.indexOf('-');
+		if (end == -1) {
+			return -1;
+		}
+		try {
+			return Long.parseLong(contentRange.substring(6, end).trim());
+		}
+		catch(NumberFormatException e) {
+			return -1;
+		}
+	}
+	
+	/**
+	 * A group of downloads, normally all of the downloads for one capture.
 	 */
-	public void queueDownload(URL source, File destination, IHlsSegmentFileDownloadCallback completionCalback) {
-		executor.execute(new Downloader(source, destination, completionCalback));
+	public class DownloadGroup {
+		
+		private final TokenBucket tokenBucket;
+		// the highest sequence number that has been queued in this group
+		private volatile int latestSequenceNumber = Integer.MIN_VALUE;
+		// lowest sequence number first, then the order they were queued in
+		private final PriorityQueue<Downloader> queue = new PriorityQueue<>(11, new Comparator<Downloader>() {
+			@Override
+			public int compare(Downloader a, Downloader b) {
+				if (a.sequenceNumber != b.sequenceNumber) {
+					return a.sequenceNumber < b.sequenceNumber ? -1 : 1;
+				}
+				return Long.compare(a.queuePosition, b.queuePosition);
+			}
+		});
+		
+		private DownloadGroup(TokenBucket tokenBucket) {
+			this.tokenBucket = tokenBucket;
+		}
+		
+		/**
+		 * Remove and return the download that should be started next, or null if all of the
+		 * downloads are for hosts which are already at their limit.
+		 * Must be called with the lock held.
+		 * @return
+		 */
+		private Downloader takeNext() {
+			Downloader next = queue.peek();
+			if (next == null) {
+				return null;
+			}
+			if (!hostHasCapacity(next.host)) {
+				// look for the lowest sequence number download for a different host
+				next = null;
+				for (Downloader downloader : queue) {
+					if (hostHasCapacity(downloader.host) && (next == null || queue.comparator().compare(downloader, next) < 0)) {
+						next = downloader;
+					}
+				}
+				if (next == null) {
+					return null;
+				}
+			}
+			queue.remove(next);
+			return next;
+		}
 	}
 	
-	private class Downloader implements Runnable {
+	private class Downloader {
 
-		private final URL source;
+		// the urls the file can be downloaded from, with the primary one first
+		private final URL[] sources;
 		private final File destination;
+		// the file that is written to until the download has completed
+		private final File tempFile;
 		private final IHlsSegmentFileDownloadCallback callback;
-		private boolean downloadSucceeded = false;
+		private final DownloadGroup group;
+		private final int sequenceNumber;
+		// the scheme, host and port of the url the first request is made to, which must have a free slot before the download is started
+		private final String host;
+		// true when a slot has been taken for the first request when the download was started, and it hasn't been sent yet.
+		// Guarded by the lock
+		private boolean hostSlotReserved = false;
+		private final long queuedTime = System.currentTimeMillis();
+		private final long queuePosition = nextQueuePosition.getAndIncrement();
+		private int attemptNum = 0;
+		// the time after which no more attempts will be made
+		private long deadline;
+		// the number of bytes of the file which have been written to the temporary file
+		private long numBytesDownloaded = 0;
+		// true if the server has said that it supports range requests for this file
+		private boolean resumable = false;
+		// the index of the url that the bytes on disk came from. A download can only be resumed from the same url
+		private int resumeSourceIndex = -1;
+		// the etag or last modified value from the response, used to make sure a resumed
+		// download is for the same version of the file
+		private String validator = null;
+		// hash of the bytes that have been written to the temporary file, or null if downloads aren't being hashed
+		private MessageDigest contentDigest = null;
+		// the space in the cache the file is being written to, or null if it isn't being cached
+		private SegmentCache.Fill cacheFill = null;
 		
-		public Downloader(URL source, File destination, IHlsSegmentFileDownloadCallback callback) {
-			this.source = source;
+		public Downloader(URL[] sources, File destination, IHlsSegmentFileDownloadCallback callback, DownloadGroup group, int sequenceNumber) {
+			this.sources = sources;
 			this.destination = destination;
+			this.tempFile = segmentFileCommitter.getTempFile(destination);
 			this.callback = callback;
+			this.group = group;
+			this.sequenceNumber = sequenceNumber;
+			// the first attempt starts with the primary url
+			this.host = getHost(sources[0]);
 		}
 		
-		@Override
-		public void run() {
-			
+		public void start() {
+			logger.debug("Starting download of \""+sources[0].toExternalForm()+"\" after it was queued for "+(System.currentTimeMillis()-queuedTime)+"ms.");
+			deadline = System.currentTimeMillis() + downloadDeadline*1000L;
 			if (callback != null) {
 				callback.onDownloadStart();
 			}
+			makeAttempt();
+		}
+		
+		private boolean canResume() {
+			return resumable && numBytesDownloaded > 0;
+		}
+		
+		private void makeAttempt() {
+			attemptNum++;
+			new Attempt().start();
+		}
+		
+		private void onAttemptFinished(boolean success) {
+			if (success) {
+				logger.debug("Download completed succesfully.");
+				onDownloadFinished(this);
+				// the file can be made available now that it is complete
+				segmentFileCommitter.commit(destination, new ISegmentFileCommitCallback() {
+					@Override
+					public void onCommitted(boolean success) {
+						if (cacheFill != null) {
+							if (success) {
+								cacheFill.complete(destination.getName());
+							}
+							else {
+								cacheFill.abort();
+							}
+						}
+						if (callback != null) {
+							String contentHash = success && contentDigest != null ? ServableFileGenerator.bytesToHex(contentDigest.digest()) : null;
+							callback.onCompletion(success, contentHash);
+						}
+					}
+				});
+				return;
+			}
+			if (cacheFill != null) {
+				cacheFill.abort();
+				cacheFill = null;
+			}
+			if (!resumable) {
+				// the next attempt will have to start from the beginning
+				numBytesDownloaded = 0;
+				tempFile.delete();
+			}
+			long delay = getRetryDelay();
+			if (attemptNum < downloadRetryCount && delay >= 0) {
+				logger.info("Retrying download in "+delay+"ms.");
+				scheduler.schedule(new Runnable() {
+					@Override
+					public void run() {
+						makeAttempt();
+					}
+				}, delay);
+				return;
+			}
+			tempFile.delete();
+			onDownloadFinished(this);
+			if (callback != null) {
+				callback.onCompletion(false, null);
+			}
+		}
+		
+		/**
+		 * Get the amount of time to wait before the next attempt, or -1 if there isn't
+		 * enough time left before the deadline.
+		 * The delay doubles after every attempt, with a random part so that lots of downloads
+		 * that failed at the same time don't all retry at the same time.
+		 * @return
+		 */
+		private long getRetryDelay() {
+			long delay = Math.min(downloadRetryMaxDelay, downloadRetryBaseDelay * (1L << Math.min(attemptNum-1, 30)));
+			delay = delay/2 + (long) (ThreadLocalRandom.current().nextDouble() * (delay/2));
+			long remainingTime = deadline - System.currentTimeMillis();
+			if (remainingTime <= MIN_ATTEMPT_TIME) {
+				return -1;
+			}
+			// leave some time for the attempt
+			return Math.min(delay, remainingTime - MIN_ATTEMPT_TIME);
+		}
+		
+		/**
+		 * One attempt at downloading the file.
+		 * A request is made to one of the urls, and if it hasn't responded within the hedge delay
+		 * another request is made to the next url. Whichever responds first is used and the others
+		 * are aborted. If a request fails before any have responded the next url is tried straight away.
+		 */
+		private class Attempt {
+			
+			// the url to try first
+			private final int firstSourceIndex;
+			// the time that all requests in this attempt must have completed by
+			private final long endTime;
+			private int numSourcesTried = 0;
+			private int numRequestsInProgress = 0;
+			private final ArrayList<AttemptRequest> requests = new ArrayList<>();
+			// the request which responded first, and is writing to the file
+			private AttemptRequest winner = null;
+			private boolean finished = false;
+			private ScheduledTask hedgeTask = null;
+			// true if a hedged request has been made
+			private boolean hedged = false;
 			
+			public Attempt() {
+				// resume from the url which provided the data on disk, otherwise rotate through the urls
+				// so that one which is down isn't always tried first
+				firstSourceIndex = canResume() ? resumeSourceIndex : (attemptNum-1) % sources.length;
+				// the attempt can't run past the deadline
+				endTime = System.currentTimeMillis() + Math.min(downloadTimeout*1000L, deadline-System.currentTimeMillis());
+			}
+			
+			public void start() {
+				AttemptRequest request;
+				synchronized(this) {
+					request = startNextRequest();
+				}
+				request.send();
+			}
 			
-			for(int i=0; i<downloadRetryCount && !downloadSucceeded; i++) {	
-				Thread downloadHandlerThread = new Thread(new DownloadHandler());
-				downloadHandlerThread.start();
-				try {
-					// wait for the download to complete for a maximum of the timeout in seconds
-					downloadHandlerThread.join(downloadTimeout*1000);
-				} catch (InterruptedException e) {
-					// shouldn't happen
-					e.printStackTrace();
+			/**
+			 * Create a request for the next url, and schedule the hedged request if there is another url.
+			 * Must be called with the lock held, and send() must be called on the returned request after.
+			 * @return
+			 */
+			private AttemptRequest startNextRequest() {
+				int sourceIndex = (firstSourceIndex + numSourcesTried) % sources.length;
+				numSourcesTried++;
+				AttemptRequest request = new AttemptRequest(sourceIndex, canResume() && sourceIndex == resumeSourceIndex);
+				requests.add(request);
+				numRequestsInProgress++;
+				if (numSourcesTried < sources.length) {
+					hedgeTask = scheduler.schedule(new HedgeTask(), downloadHedgeDelay);
 				}
+				return request;
+			}
+			
+			private class HedgeTask implements Runnable {
 				
-				if (downloadHandlerThread.isAlive()) {
-					// request the thread to terminate as taking too long
-					logger.warn("Timing out a download because it is taking too long.");
-					downloadHandlerThread.interrupt();
+				@Override
+				public void run() {
+					AttemptRequest request;
+					synchronized(Attempt.this) {
+						if (winner != null || finished || numSourcesTried >= sources.length) {
+							return;
+						}
+						URL nextSource = sources[(firstSourceIndex + numSourcesTried) % sources.length];
+						synchronized(lock) {
+							if (!hostHasCapacity(getHost(nextSource))) {
+								// the request that is in progress will have to do
+								logger.debug("Not making hedged request for \""+sources[0].toExternalForm()+"\" because \""+getHost(nextSource)+"\" already has the maximum number of downloads.");
+								return;
+							}
+						}
+						logger.debug("Making hedged request for \""+sources[0].toExternalForm()+"\" because the previous request hasn't responded yet.");
+						numHedgedRequests.incrementAndGet();
+						hedged = true;
+						request = startNextRequest();
+					}
+					request.send();
+				}
+			}
+			
+			/**
+			 * Called from a request when it has received an acceptable response.
+			 * Returns true if the request should be used, or false if another request responded first.
+			 * @param request
+			 * @return
+			 */
+			private boolean claim(AttemptRequest request) {
+				ArrayList<AttemptRequest> others = new ArrayList<>();
+				synchronized(this) {
+					if (winner != null || finished) {
+						return false;
+					}
+					winner = request;
+					if (hedgeTask != null) {
+						hedgeTask.cancel();
+					}
+					for (AttemptRequest otherRequest : requests) {
+						if (otherRequest != request) {
+							others.add(otherRequest);
+						}
+					}
+					if (hedged && request.sourceIndex != firstSourceIndex) {
+						numHedgedRequestWins.incrementAndGet();
+					}
 				}
-				if (i<downloadRetryCount-1 && !downloadSucceeded) {
-					logger.info("Retrying download.");
+				for (AttemptRequest otherRequest : others) {
+					otherRequest.abort(new IOException("A request to a different url responded first."));
 				}
+				return true;
 			}
-			if (callback != null) {
-				callback.onCompletion(downloadSucceeded);
+			
+			/**
+			 * Called from a request when it has completed.
+			 * @param request
+			 * @param success
+			 */
+			private void onRequestComplete(AttemptRequest request, boolean success) {
+				onHostRequestFinished(getHost(sources[request.sourceIndex]));
+				AttemptRequest nextRequest = null;
+				synchronized(this) {
+					numRequestsInProgress--;
+					if (finished) {
+						return;
+					}
+					if (request != winner) {
+						if (winner != null) {
+							// this request was aborted because another one responded first
+							return;
+						}
+						if (numSourcesTried < sources.length) {
+							// try the next url now instead of waiting for the hedge delay
+							if (hedgeTask != null) {
+								hedgeTask.cancel();
+							}
+							nextRequest = startNextRequest();
+						}
+						else if (numRequestsInProgress > 0) {
+							// wait for the other requests
+							return;
+						}
+					}
+					if (nextRequest == null) {
+						finished = true;
+					}
+				}
+				if (nextRequest != null) {
+					nextRequest.send();
+					return;
+				}
+				onAttemptFinished(request == winner && success);
 			}
-		}
-		
-		private class DownloadHandler implements Runnable {
-
-			@Override
-			public void run() {
-				try {
-					logger.debug("Attempting to download \""+source.toExternalForm()+"\" to \""+destination.getAbsolutePath()+"\".");
-					ReadableByteChannel rbc = Channels.newChannel(source.openStream());
-					FileOutputStream fos = new FileOutputStream(destination);
+			
+			/**
+			 * A request to one of the urls.
+			 * Writes the response to the destination file as it arrives if it is the request which is used.
+			 */
+			private class AttemptRequest extends Response.Listener.Adapter {
+				
+				private final int sourceIndex;
+				private final boolean resuming;
+				private Request request = null;
+				private FileChannel channel = null;
+				
+				public AttemptRequest(int sourceIndex, boolean resuming) {
+					this.sourceIndex = sourceIndex;
+					this.resuming = resuming;
+				}
+				
+				public void send() {
+					URL source = sources[sourceIndex];
+					synchronized(lock) {
+						if (hostSlotReserved) {
+							// the first request uses the slot that was taken when the download was started
+							hostSlotReserved = false;
+						}
+						else {
+							addHostRequest(getHost(source));
+						}
+					}
+					if (resuming) {
+						logger.debug("Attempting to resume download of \""+source.toExternalForm()+"\" to \""+tempFile.getAbsolutePath()+"\" from byte "+numBytesDownloaded+".");
+					}
+					else {
+						logger.debug("Attempting to download \""+source.toExternalForm()+"\" to \""+tempFile.getAbsolutePath()+"\".");
+					}
 					try {
-						fos.getChannel().transferFrom(rbc, 0, Long.MAX_VALUE);
+						request = sharedHttpClient.getClient().newRequest(source.toURI())
+							// the maximum amount of time that the whole download can take, including connecting
+							.timeout(Math.max(1, endTime-System.currentTimeMillis()), TimeUnit.MILLISECONDS)
+							// the maximum amount of time to wait for more data
+							.idleTimeout(downloadReadTimeout, TimeUnit.SECONDS);
+						if (resuming) {
+							request.header(HttpHeader.RANGE, "bytes="+numBytesDownloaded+"-");
+							if (validator != null) {
+								// if the file has changed the server will send all of it instead
+								request.header(HttpHeader.IF_RANGE, validator);
+							}
+						}
+						request.send(this);
 					}
-					finally {
-						fos.close();
+					catch(Exception e) {
+						e.printStackTrace();
+						logger.warn("Download failed for some reason.");
+						onRequestComplete(this, false);
 					}
-					downloadSucceeded = true;
-					logger.debug("Download completed succesfully.");
 				}
-				catch(Exception e) {
-					e.printStackTrace();
-					logger.warn("Download failed for some reason.");
-					destination.delete();
+				
+				public void abort(Throwable cause) {
+					if (request != null) {
+						request.abort(cause);
+					}
+				}
+				
+				@Override
+				public void onHeaders(Response response) {
+					long startPosition;
+					if (response.getStatus() == HttpStatus.OK_200) {
+						// the whole file
+						startPosition = 0;
+					}
+					else if (response.getStatus() == HttpStatus.PARTIAL_CONTENT_206 && resuming) {
+						startPosition = getRangeStart(response.getHeaders().get(HttpHeader.CONTENT_RANGE));
+						if (startPosition != numBytesDownloaded) {
+							response.abort(new IOException("Server responded with the wrong range."));
+							return;
+						}
+					}
+					else {
+						response.abort(new IOException("Unexpected response status "+response.getStatus()+"."));
+						return;
+					}
+					if (!claim(this)) {
+						response.abort(new IOException("A request to a different url responded first."));
+						return;
+					}
+					if (startPosition == 0) {
+						resumable = "bytes".equalsIgnoreCase(response.getHeaders().get(HttpHeader.ACCEPT_RANGES));
+						resumeSourceIndex = sourceIndex;
+						validator = response.getHeaders().get(HttpHeader.ETAG);
+						if (validator == null) {
+							validator = response.getHeaders().get(HttpHeader.LAST_MODIFIED);
+						}
+						if (hashDownloads) {
+							try {
+								contentDigest = MessageDigest.getInstance("SHA-256");
+							} catch (NoSuchAlgorithmException e) {
+								e.printStackTrace();
+								throw(new RuntimeException("SHA-256 algorithm could not be found."));
+							}
+						}
+					}
+					if (cacheFill != null) {
+						cacheFill.abort();
+						cacheFill = null;
+					}
+					if (startPosition == 0) {
+						// only cached if the whole file is downloaded in one go
+						long contentLength = -1;
+						try {
+							contentLength = response.getHeaders().getLongField(HttpHeader.CONTENT_LENGTH.asString());
+						}
+						catch(NumberFormatException e) {
+							// invalid header, so the file won't be cached
+						}
+						cacheFill = segmentCache.startFill(contentLength);
+					}
+					try {
+						numBytesDownloaded = startPosition;
+						channel = new RandomAccessFile(tempFile, "rw").getChannel();
+						channel.truncate(startPosition);
+						channel.position(startPosition);
+					} catch (IOException e) {
+						response.abort(e);
+					}
+				}
+				
+				@Override
+				public void onContent(Response response, ByteBuffer content) {
+					try {
+						// the content is in a direct buffer from the http client's pool, so it is written
+						// to the file without being copied
+						int limit = content.limit();
+						while(content.hasRemaining()) {
+							int position = content.position();
+							int numBytes = channel.write(content);
+							if (contentDigest != null || cacheFill != null) {
+								// only hash and cache what was actually written so that the hash stays correct
+								// if the download is resumed
+								content.position(position).limit(position+numBytes);
+								if (contentDigest != null) {
+									contentDigest.update(content);
+									content.position(position);
+								}
+								if (cacheFill != null && !cacheFill.write(content)) {
+									// bigger than expected
+									cacheFill = null;
+								}
+								content.position(position+numBytes).limit(limit);
+							}
+							numBytesDownloaded += numBytes;
+						}
+					} catch (IOException e) {
+						response.abort(e);
+					}
+				}
+				
+				@Override
+				public void onContent(Response response, ByteBuffer content, final Callback callback) {
+					int numBytes = content.remaining();
+					onContent(response, content);
+					long delay = throttle(sources[sourceIndex], group, sequenceNumber, numBytes);
+					if (delay <= 0) {
+						callback.succeeded();
+						return;
+					}
+					// no more data will be read until the callback is called
+					scheduler.schedule(new Runnable() {
+						@Override
+						public void run() {
+							callback.succeeded();
+						}
+					}, delay);
+				}
+				
+				@Override
+				public void onComplete(Result result) {
+					boolean success = result.isSucceeded();
+					if (channel != null) {
+						try {
+							channel.close();
+						} catch (IOException e) {
+							e.printStackTrace();
+							success = false;
+						}
+					}
+					if (!success && (winner == null || winner == this)) {
+						if (result.getFailure() != null) {
+							logger.warn("Download failed: "+result.getFailure());
+						}
+						else {
+							logger.warn("Download failed for some reason.");
+						}
+					}
+					onRequestComplete(this, success);
 				}
 			}
 		}
-		
 	}
 	
 }
@@ -2,6 +2,7 @@ package uk.co.la1tv.dvrBridgeService.hlsRecorder;
 
 import java.awt.Dimension;
 import java.net.URL;
+import java.util.Arrays;
 
 import org.springframework.context.annotation.Scope;
 import org.springframework.stereotype.Component;
@@ -14,6 +15,8 @@ import org.springframework.stereotype.Component;
 public class HlsPlaylist {
 	
 	private final URL playlistUrl;
+	// other urls where the same playlist is available, e.g. a backup origin
+	private final URL[] alternateUrls;
 	private final Integer bandwidth;
 	private final String codecs;
 	private final Dimension resolution;
@@ -23,11 +26,26 @@ public class HlsPlaylist {
 	 * @param playlistUrl
 	 */
 	public HlsPlaylist(URL playlistUrl) {
-		this(playlistUrl, null, null, null);
+		this(new URL[]{playlistUrl});
+	}
+	
+	/**
+	 * Create an instance which represents a specific playlist file which is available at
+	 * several equivalent urls. The first url is the primary one.
+	 * The playlists at all of the urls must use the same media sequence numbers for the same segments.
+	 * @param playlistUrls
+	 */
+	public HlsPlaylist(URL[] playlistUrls) {
+		this(playlistUrls, null, null, null);
 	}
 	
 	public HlsPlaylist(URL playlistUrl, Integer bandwidth, String codecs, Dimension resolution) {
-		this.playlistUrl = playlistUrl;
+		this(new URL[]{playlistUrl}, bandwidth, codecs, resolution);
+	}
+	
+	public HlsPlaylist(URL[] playlistUrls, Integer bandwidth, String codecs, Dimension resolution) {
+		this.playlistUrl = playlistUrls[0];
+		this.alternateUrls = Arrays.copyOfRange(playlistUrls, 1, playlistUrls.length);
 		this.bandwidth = bandwidth;
 		this.codecs = codecs;
 		this.resolution = resolution;
@@ -41,6 +59,20 @@ public class HlsPlaylist {
 		return playlistUrl;
 	}
 	
+	/**
+	 * Get all of the urls the playlist is available at, starting with the primary one.
+	 * These are assumed to number segments the same way, so that the segment with a media sequence
+	 * number can be downloaded from any of them. A capture stops using a url if it finds a segment
+	 * which doesn't match the one with the same number from another url.
+	 * @return
+	 */
+	public URL[] getUrls() {
+		URL[] urls = new URL[alternateUrls.length+1];
+		urls[0] = playlistUrl;
+		System.arraycopy(alternateUrls, 0, urls, 1, alternateUrls.length);
+		return urls;
+	}
+	
 	public Integer getBandwidth() {
 		return bandwidth;
 	}
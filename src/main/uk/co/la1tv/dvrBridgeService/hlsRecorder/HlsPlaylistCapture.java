@@ -3,12 +3,14 @@ package uk.co.la1tv.dvrBridgeService.hlsRecorder;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.PostConstruct;
 
 import org.apache.log4j.Logger;
-import org.json.simple.JSONArray;
-import org.json.simple.JSONObject;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Scope;
@@ -17,6 +19,11 @@ import org.springframework.stereotype.Component;
 import uk.co.la1tv.dvrBridgeService.helpers.M3u8ParserHelper;
 import uk.co.la1tv.dvrBridgeService.hlsRecorder.exceptions.IncompletePlaylistException;
 import uk.co.la1tv.dvrBridgeService.hlsRecorder.exceptions.PlaylistRequestException;
+import uk.co.la1tv.dvrBridgeService.m3u8Parser.M3u8MediaPlaylist;
+import uk.co.la1tv.dvrBridgeService.m3u8Parser.M3u8Segment;
+import uk.co.la1tv.dvrBridgeService.scheduling.EventDispatcher;
+import uk.co.la1tv.dvrBridgeService.scheduling.OrderedEventQueue;
+import uk.co.la1tv.dvrBridgeService.scheduling.SharedScheduler;
 
 /**
  * An object that represents a hls playlist recording.
@@ -27,23 +34,52 @@ public class HlsPlaylistCapture {
 
 	private static Logger logger = Logger.getLogger(HlsPlaylistCapture.class);
 	
+	private static final Object PLAYLIST_UPDATED_EVENT_KEY = new Object();
+	// the number of segment urls that are remembered from each remote playlist
+	private static final int MAX_RECENT_SEGMENT_URLS = 100;
+	// the amount (seconds) that the duration of the same segment can differ by between urls, because
+	// packagers can write durations with different precisions (whole seconds before version 3)
+	private static final float SEGMENT_DURATION_TOLERANCE = 0.5f;
+	
 	private final Object lock = new Object();
 	private final Object playlistGenerationLock = new Object();
 	
-	@Value("${app.playlistUpdateInterval}")
-	private int playlistUpdateInterval;
-	
 	@Autowired
 	private M3u8ParserHelper m3u8ParserHelper;
 	
+	@Autowired
+	private PlaylistPollerRegistry playlistPollerRegistry;
+	
+	@Autowired
+	private EventDispatcher eventDispatcher;
+	
+	@Autowired
+	private DownloadManager downloadManager;
+	
 	@Autowired
 	private HlsSegmentFileStore hlsSegmentFileStore;
 	
+	@Autowired
+	private SharedScheduler scheduler;
+	
+	@Value("${app.lowLatencyPlaylists}")
+	private boolean lowLatencyPlaylists;
+	
 	private final HlsPlaylist playlist;
 	private HlsPlaylistCaptureState captureState = HlsPlaylistCaptureState.NOT_STARTED;
 	private Long captureStartTime = null; // start time in unix time in milliseconds
 	// the segments that have been downloaded in order
 	private ArrayList<HlsSegment> segments = new ArrayList<>();
+	// if set segments are removed from the start of the generated playlist, so that it is only
+	// this many seconds long
+	private final int windowDuration;
+	// the segments that have been removed from the start, which are waiting to be released
+	private final HashSet<HlsSegment> segmentsLeftWindow = new HashSet<>();
+	// the media sequence number of the first segment in the generated playlist
+	private int firstSegmentMediaSequence = 0;
+	private int discontinuitySequence = 0;
+	// the total duration of the segments in the generated playlist
+	private double generatedPlaylistDuration = 0;
 	// the index of the last segment in the generated playlist
 	private Integer lastSegmentIndexInGeneratedPlaylist = null;
 	private boolean addedStartToGeneratedPlaylist = false;
@@ -51,24 +87,55 @@ public class HlsPlaylistCapture {
 	// the maximum length that a segment can be (milliseconds)
 	// retrieved from the playlist
 	private Float segmentTargetDuration = null;
-	private final Timer updateTimer = new Timer();
+	// one for each of the urls that the playlist is available at, with the primary one first
+	private final PlaylistPollListener[] playlistPollListeners;
+	// recent segments as they were first seen in any of the urls. Key is the sequence number.
+	// Used to check that all of the urls number the segments the same way
+	private final LinkedHashMap<Integer, M3u8Segment> recentSegments = new LinkedHashMap<Integer, M3u8Segment>() {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Integer, M3u8Segment> eldest) {
+			return size() > MAX_RECENT_SEGMENT_URLS;
+		}
+	};
+	// the callbacks are run from this queue so that they are in order
+	private OrderedEventQueue eventQueue = null;
+	// the segment downloads for this capture are queued in this group
+	private DownloadManager.DownloadGroup downloadGroup = null;
 	private IPlaylistUpdatedListener playlistUpdatedListener = null;
 	private ICaptureStateChangeListener captureStateChangeListener = null;
-	private String generatedPlaylistContent = "";
+	// only ever appended to, so each update only has to encode the new segments. Replaced
+	// when segments are removed from the start
+	private PlaylistBuilder generatedPlaylist = new PlaylistBuilder();
+	private volatile PlaylistSnapshot generatedPlaylistContent = generatedPlaylist.snapshot();
 	// the unix time when the next chunk is expected by
 	private Long nextChunkExpectedTime = null;
 	
 	/**
 	 * Create a new object which represents a capture file for a playlist.
 	 * @param playlist The playlist to generate a capture from.
+	 * @param windowDuration The number of seconds of the stream that are kept, or 0 to keep all of it.
 	 */
-	public HlsPlaylistCapture(HlsPlaylist playlist) {
+	public HlsPlaylistCapture(HlsPlaylist playlist, int windowDuration) {
 		this.playlist = playlist;
+		this.windowDuration = windowDuration;
+		URL[] playlistUrls = playlist.getUrls();
+		playlistPollListeners = new PlaylistPollListener[playlistUrls.length];
+		for (int i=0; i<playlistUrls.length; i++) {
+			playlistPollListeners[i] = new PlaylistPollListener(playlistUrls[i]);
+		}
+	}
+	
+	@PostConstruct
+	private void onPostConstruct() {
+		eventQueue = eventDispatcher.createQueue();
+		downloadGroup = downloadManager.createGroup();
 	}
 	
 	/**
 	 * Register a listener to be informed when the generated playlist changes.
-	 * This callback will be in a new thread. (More info in the interface)
+	 * This callback will be in a different thread. (More info in the interface)
 	 * @param playlistUpdatedListener
 	 */
 	public void setPlaylistUpdatedListener(IPlaylistUpdatedListener playlistUpdatedListener) {
@@ -77,7 +144,7 @@ public class HlsPlaylistCapture {
 	
 	/**
 	 * Register a listener to be informed when the capture state changes.
-	 * This callback will be in a new thread. (More info in the interface)
+	 * This callback will be in a different thread. (More info in the interface)
 	 * @param stateChangeListener
 	 */
 	public void setStateChangeListener(ICaptureStateChangeListener stateChangeListener) {
@@ -108,7 +175,9 @@ public class HlsPlaylistCapture {
 			}
 			updateCaptureState(HlsPlaylistCaptureState.CAPTURING);
 			captureStartTime = System.currentTimeMillis();
-			updateTimer.schedule(new UpdateTimerTask(), 0, playlistUpdateInterval);
+			for (PlaylistPollListener playlistPollListener : playlistPollListeners) {
+				playlistPollerRegistry.subscribe(playlistPollListener.playlistUrl, playlistPollListener);
+			}
 			generatePlaylistContent();
 			return true;
 		}
@@ -122,8 +191,9 @@ public class HlsPlaylistCapture {
 			if (captureState != HlsPlaylistCaptureState.CAPTURING) {
 				throw(new RuntimeException("Invalid capture state."));
 			}
-			updateTimer.cancel();
-			updateTimer.purge();
+			for (PlaylistPollListener playlistPollListener : playlistPollListeners) {
+				playlistPollerRegistry.unsubscribe(playlistPollListener.playlistUrl, playlistPollListener);
+			}
 			updateCaptureState(HlsPlaylistCaptureState.STOPPED);
 			generatePlaylistContent();
 		}
@@ -139,15 +209,14 @@ public class HlsPlaylistCapture {
 				throw(new RuntimeException("Invalid capture state."));
 			}
 			
+			// release all the files
 			for (HlsSegment segment : segments) {
-				// release all the files. This allows the HlsSegmentFileStore to delete them
-				HlsSegmentFileProxy segmentFile = segment.getSegmentFile();
-				if (!segmentFile.isReleased()) {
-					// could be possible for 2 items in the remote playlist to be the same file
-					// e.g an advert segment repeated several times
-					segmentFile.release();
-				}
+				releaseSegment(segment);
 			}
+			for (HlsSegment segment : segmentsLeftWindow) {
+				releaseSegment(segment);
+			}
+			segmentsLeftWindow.clear();
 			updateCaptureState(HlsPlaylistCaptureState.DELETED);
 		}
 	}
@@ -177,7 +246,7 @@ public class HlsPlaylistCapture {
 	/**
 	 * Get the contents of the playlist file that represents this capture
 	 */
-	public String getPlaylistContent() {
+	public PlaylistSnapshot getPlaylistContent() {
 		if (captureState == HlsPlaylistCaptureState.NOT_STARTED) {
 			throw(new RuntimeException("Capture not started yet."));
 		}
@@ -193,15 +262,10 @@ public class HlsPlaylistCapture {
 	 */
 	private void generatePlaylistContent() {
 		synchronized(playlistGenerationLock) {
-			String contents = generatedPlaylistContent;
+			int previousLength = generatedPlaylist.getLength();
+			boolean windowMoved = false;
 			if (!addedStartToGeneratedPlaylist) {
-				contents += "#EXTM3U\n";
-				contents += "#EXT-X-VERSION:3\n";
-				contents += "#EXT-X-ALLOW-CACHE:NO\n";
-				contents += "#EXT-X-PLAYLIST-TYPE:EVENT\n";
-				// for some reason segmentTargetDuration needs to appear as an int
-				contents += "#EXT-X-TARGETDURATION:"+Math.round(segmentTargetDuration)+"\n";
-				contents += "#EXT-X-MEDIA-SEQUENCE:0\n";
+				appendPlaylistHeader(generatedPlaylist);
 				addedStartToGeneratedPlaylist = true;
 			}
 				
@@ -224,69 +288,179 @@ public class HlsPlaylistCapture {
 						break;
 					}
 					
-					if (segment.getDiscontinuityFlag()) {
-						contents += "#EXT-X-DISCONTINUITY\n";
-					}
-					contents += "#EXTINF:"+segment.getDuration()+",\n";
-					contents += segmentFile.getFileUrl().toExternalForm()+"\n";
+					appendPlaylistSegment(generatedPlaylist, segment);
+					generatedPlaylistDuration += segment.getDuration();
 					lastSegmentIndexInGeneratedPlaylist = i;
 				}
+				
+				if (windowDuration > 0 && removeSegmentsOutsideWindow()) {
+					// the start of the playlist has changed, so it can't be appended to
+					windowMoved = true;
+					generatedPlaylist = new PlaylistBuilder();
+					appendPlaylistHeader(generatedPlaylist);
+					for (int i=0; i<=lastSegmentIndexInGeneratedPlaylist; i++) {
+						appendPlaylistSegment(generatedPlaylist, segments.get(i));
+					}
+				}
 			}
 			
 			if (captureState == HlsPlaylistCaptureState.STOPPED && allSegmentsDownloaded && !addedEndListToGeneratedPlaylist) {
 				// recording has finished, and has all segments, so mark event as finished
-				contents += "#EXT-X-ENDLIST\n";
+				generatedPlaylist.appendEndList();
 				addedEndListToGeneratedPlaylist = true;
 			}
 			
-			if (contents.equals(generatedPlaylistContent)) {
+			if (!windowMoved && generatedPlaylist.getLength() == previousLength) {
 				// no change
 				return;
 			}
-			generatedPlaylistContent = contents;
+			generatedPlaylistContent = generatedPlaylist.snapshot();
 			callPlaylistUpdatedCallback(generatedPlaylistContent);
 		}
 	}
 	
+	private void appendPlaylistHeader(PlaylistBuilder builder) {
+		// for some reason segmentTargetDuration needs to appear as an int
+		int targetDuration = Math.round(segmentTargetDuration);
+		builder.setTargetDuration(targetDuration);
+		builder.setMediaSequence(firstSegmentMediaSequence);
+		builder.append("#EXTM3U\n");
+		if (lowLatencyPlaylists) {
+			// EXT-X-SKIP needs version 9, and EXT-X-ALLOW-CACHE was removed in version 7
+			builder.append("#EXT-X-VERSION:9\n");
+		}
+		else {
+			builder.append("#EXT-X-VERSION:3\n");
+			builder.append("#EXT-X-ALLOW-CACHE:NO\n");
+		}
+		if (windowDuration == 0) {
+			// segments are never removed from the start
+			builder.append("#EXT-X-PLAYLIST-TYPE:EVENT\n");
+		}
+		builder.append("#EXT-X-TARGETDURATION:"+targetDuration+"\n");
+		if (lowLatencyPlaylists) {
+			// the spec requires CAN-SKIP-UNTIL to be at least 6 target durations
+			int canSkipUntil = targetDuration*6;
+			builder.setCanSkipUntil(canSkipUntil);
+			builder.append("#EXT-X-SERVER-CONTROL:CAN-BLOCK-RELOAD=YES,CAN-SKIP-UNTIL="+canSkipUntil+"\n");
+		}
+		builder.append("#EXT-X-MEDIA-SEQUENCE:"+firstSegmentMediaSequence+"\n");
+		if (discontinuitySequence > 0) {
+			builder.append("#EXT-X-DISCONTINUITY-SEQUENCE:"+discontinuitySequence+"\n");
+		}
+	}
+	
+	private void appendPlaylistSegment(PlaylistBuilder builder, HlsSegment segment) {
+		String entry = "";
+		if (segment.getDiscontinuityFlag()) {
+			entry += "#EXT-X-DISCONTINUITY\n";
+		}
+		entry += "#EXTINF:"+segment.getDuration()+",\n"+segment.getSegmentFile().getFileUrl().toExternalForm()+"\n";
+		builder.appendSegment(entry, segment.getDuration());
+	}
+	
+	/**
+	 * Remove the segments from the start of the generated playlist that are not needed to keep
+	 * it at least windowDuration long. Their files are released once clients can no longer
+	 * have a playlist which contains them.
+	 * Must be called while holding the lock.
+	 * @return true if any segments were removed.
+	 */
+	private boolean removeSegmentsOutsideWindow() {
+		if (lastSegmentIndexInGeneratedPlaylist == null) {
+			return false;
+		}
+		// the spec says a live playlist must be at least 3 target durations long
+		double minDuration = Math.max(windowDuration, segmentTargetDuration*3);
+		int numToRemove = 0;
+		while (numToRemove < lastSegmentIndexInGeneratedPlaylist && generatedPlaylistDuration - segments.get(numToRemove).getDuration() >= minDuration) {
+			generatedPlaylistDuration -= segments.get(numToRemove).getDuration();
+			if (segments.get(numToRemove).getDiscontinuityFlag()) {
+				discontinuitySequence++;
+			}
+			numToRemove++;
+		}
+		if (numToRemove == 0) {
+			return false;
+		}
+		List<HlsSegment> removedSegmentsList = segments.subList(0, numToRemove);
+		final ArrayList<HlsSegment> removedSegments = new ArrayList<>(removedSegmentsList);
+		removedSegmentsList.clear();
+		lastSegmentIndexInGeneratedPlaylist -= numToRemove;
+		firstSegmentMediaSequence += numToRemove;
+		segmentsLeftWindow.addAll(removedSegments);
+		
+		// the spec says a segment must stay available for its duration plus the duration of the
+		// longest playlist that contained it after it is removed
+		float maxSegmentDuration = 0;
+		for (HlsSegment segment : removedSegments) {
+			maxSegmentDuration = Math.max(maxSegmentDuration, segment.getDuration());
+		}
+		long releaseDelay = Math.round((generatedPlaylistDuration + maxSegmentDuration*(numToRemove+1))*1000);
+		scheduler.schedule(new Runnable() {
+			@Override
+			public void run() {
+				synchronized(lock) {
+					for (HlsSegment segment : removedSegments) {
+						// already released if the capture has been deleted
+						if (segmentsLeftWindow.remove(segment)) {
+							releaseSegment(segment);
+						}
+					}
+				}
+			}
+		}, releaseDelay);
+		return true;
+	}
+	
+	private void releaseSegment(HlsSegment segment) {
+		// this allows the HlsSegmentFileStore to delete the file
+		HlsSegmentFileProxy segmentFile = segment.getSegmentFile();
+		if (!segmentFile.isReleased()) {
+			// could be possible for 2 items in the remote playlist to be the same file
+			// e.g an advert segment repeated several times
+			segmentFile.release();
+		}
+	}
+	
 	/**
 	 * Get any necessary metadata about the playlist.
 	 * e.g the segmentTargetDuration
 	 * @throws PlaylistRequestException 
 	 */
 	private void retrievePlaylistMetadata() throws PlaylistRequestException {
-		JSONObject info = m3u8ParserHelper.getPlaylistInfo(playlist.getUrl());
-		JSONObject properties = (JSONObject) info.get("properties");
-		Object targetDuration = properties.get("targetDuration");
-		if (targetDuration == null) {
+		M3u8MediaPlaylist mediaPlaylist = null;
+		PlaylistRequestException lastException = null;
+		// use the first url that works
+		for (URL playlistUrl : playlist.getUrls()) {
+			try {
+				mediaPlaylist = m3u8ParserHelper.getMediaPlaylist(playlistUrl);
+				break;
+			} catch (PlaylistRequestException e) {
+				lastException = e;
+			}
+		}
+		if (mediaPlaylist == null) {
+			throw(lastException);
+		}
+		if (!mediaPlaylist.hasTargetDuration()) {
 			throw(new IncompletePlaylistException());
 		}
-		String durationStr = String.valueOf(targetDuration);
-		float duration = Float.valueOf(durationStr);
-		segmentTargetDuration = duration;
-	}
-	
-	/**
-	 * Extract the playlist items out of playlistInfo.
-	 * Returns null if there was an error.
-	 * @return
-	 */
-	private JSONArray extractPlaylistItems(JSONObject playlistInfo) {
-		JSONObject items = (JSONObject) playlistInfo.get("items");
-		JSONArray playlistItems = (JSONArray) items.get("PlaylistItem");
-		return playlistItems;
+		segmentTargetDuration = mediaPlaylist.getTargetDuration();
 	}
 	
-	private void callPlaylistUpdatedCallback(final String playlistContent) {
+	private void callPlaylistUpdatedCallback(final PlaylistSnapshot playlistContent) {
 		// call the callback in a separate thread to prevent issues if actions are performed
 		// in the callback that call other methods like stopCapture()
 		final IPlaylistUpdatedListener listener = playlistUpdatedListener;
 		if (listener != null) {
-			new Thread(new Runnable() {
+			// if there is already an update waiting it is replaced, because only the latest content matters
+			eventQueue.executeLatest(PLAYLIST_UPDATED_EVENT_KEY, new Runnable() {
 				@Override
 				public void run() {
 					listener.onPlaylistUpdated(playlistContent);
 				}
-			}).start();
+			});
 		}
 	}
 	
@@ -295,26 +469,93 @@ public class HlsPlaylistCapture {
 		// in the callback that call other methods like stopCapture()
 		final ICaptureStateChangeListener listener = captureStateChangeListener;
 		if (listener != null) {
-			new Thread(new Runnable() {
+			eventQueue.execute(new Runnable() {
 				@Override
 				public void run() {
 					listener.onStateChange(captureState);
 				}
-			}).start();
+			});
 		}
 	}
 	
 	/**
-	 * Responsible for retrieving new segments as they become available.
+	 * Responsible for adding new segments as they become available.
+	 * There is one of these for each url the playlist is available at, and new segments
+	 * are added from whichever one has them first.
+	 * The playlist is shared with any other captures of the same url.
 	 */
-	private class UpdateTimerTask extends TimerTask {
+	private class PlaylistPollListener implements IPlaylistPollListener {
+		
+		private final URL playlistUrl;
+		// true if the last request for the playlist failed
+		private boolean failing = false;
+		// true if a segment in this playlist didn't match the segment with the same sequence number
+		// from another url, in which case this url is no longer used
+		private boolean misaligned = false;
+		// the urls of the most recent segments in this playlist. Key is the sequence number
+		private final LinkedHashMap<Integer, URL> recentSegmentUrls = new LinkedHashMap<Integer, URL>() {
+			private static final long serialVersionUID = 1L;
 
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, URL> eldest) {
+				return size() > MAX_RECENT_SEGMENT_URLS;
+			}
+		};
+		
+		public PlaylistPollListener(URL playlistUrl) {
+			this.playlistUrl = playlistUrl;
+		}
+		
+		/**
+		 * Get the url for the segment with the sequence number from this playlist, or null if the uri is invalid.
+		 * @param sequenceNumber
+		 * @param uri The uri of the segment in the playlist it was found in, which may be this one or another
+		 * @return
+		 */
+		private URL getSegmentUrl(int sequenceNumber, String uri) {
+			if (misaligned) {
+				return null;
+			}
+			URL url = recentSegmentUrls.get(sequenceNumber);
+			if (url == null) {
+				// haven't seen it in this playlist (e.g. the shared poll result had no new segments, or this
+				// playlist is behind) but a relative uri is likely to be at the same location relative to this
+				// playlist, and an absolute uri resolves to itself
+				try {
+					url = new URL(playlistUrl, uri);
+				} catch (MalformedURLException e) {}
+			}
+			return url;
+		}
+		
 		@Override
-		public void run() {
+		public void onPlaylistRetrieved(M3u8MediaPlaylist mediaPlaylist) {
 			synchronized(lock) {
-				if (captureState != HlsPlaylistCaptureState.CAPTURING) {
+				if (captureState != HlsPlaylistCaptureState.CAPTURING || misaligned) {
 					return;
 				}
+				failing = false;
+				
+				// only contains the segments that are new since the previous poll
+				M3u8Segment[] items = mediaPlaylist.getSegments();
+				int seqNum = mediaPlaylist.getFirstSegmentSequenceNumber();
+				for(int i=0; i<items.length; i++) {
+					M3u8Segment knownSegment = recentSegments.get(seqNum+i);
+					if (knownSegment != null && !isSameSegment(knownSegment, items[i])) {
+						onMisaligned(seqNum+i);
+						return;
+					}
+				}
+				for(int i=0; i<items.length; i++) {
+					if (!recentSegments.containsKey(seqNum+i)) {
+						recentSegments.put(seqNum+i, items[i]);
+					}
+					try {
+						recentSegmentUrls.put(seqNum+i, new URL(playlistUrl, items[i].getUri()));
+					} catch (MalformedURLException e) {
+						throw(new IncompletePlaylistException());
+					}
+				}
 				
 				if (nextChunkExpectedTime != null && nextChunkExpectedTime < System.currentTimeMillis() - 10000) {
 					// should have had next chunk by now
@@ -330,33 +571,30 @@ public class HlsPlaylistCapture {
 				// if we don't have any segments yet then we will set this to null which will mean just the newest chunk
 				// will be retrieved
 				Integer nextSequenceNumber = lastSequenceNumber != null ? lastSequenceNumber+1 : null;
-				JSONObject playlistInfo = null;
-				try {
-					playlistInfo = m3u8ParserHelper.getPlaylistInfo(playlist.getUrl());
-				} catch (PlaylistRequestException e) {
-					logger.warn("Error retrieving playlist so stopping capture.");
-					stopCapture();
-					return;
-				}
 				
-				JSONObject properties = (JSONObject) playlistInfo.get("properties");
-				int firstSequenceNumber = Integer.valueOf(String.valueOf(properties.get("mediaSequence")));
+				int firstSequenceNumber = mediaPlaylist.getMediaSequence();
 				
-				JSONArray items = extractPlaylistItems(playlistInfo);
-				if (!items.isEmpty()) {
+				M3u8Segment lastItem = mediaPlaylist.getLastSegment();
+				if (lastItem != null) {
 					if (nextSequenceNumber != null) {
 						if (firstSequenceNumber > nextSequenceNumber) {
 							// the next chunk we want has left the playlist already
+							if (hasWorkingAlternative(this)) {
+								// another url may still have it
+								logger.warn("Next chunk has already left remote playlist at \""+playlistUrl.toExternalForm()+"\" so relying on the other urls.");
+								return;
+							}
 							// stop the capture
 							logger.warn("Next chunk has already left remote playlist so stopping capture.");
 							stopCapture();
 						}
 						else {
-							int seqNum = firstSequenceNumber;
-							for(int i=0; i<items.size(); i++) {
+							seqNum = mediaPlaylist.getFirstSegmentSequenceNumber();
+							for(int i=0; i<items.length; i++) {
 								if (seqNum >= nextSequenceNumber) {
 									// this is a new item
-									addNewSegment((JSONObject) items.get(i), seqNum);
+									addNewSegment(items[i], seqNum);
+									nextSequenceNumber = seqNum+1;
 								}
 								seqNum++;
 							}
@@ -364,26 +602,88 @@ public class HlsPlaylistCapture {
 					}
 					else {
 						// just add the newest segment
-						addNewSegment((JSONObject) items.get(items.size()-1), firstSequenceNumber+items.size()-1);
+						addNewSegment(lastItem, mediaPlaylist.getLastSegmentSequenceNumber());
 					}
 					// calculate the time when we should have the next chunk by
 					nextChunkExpectedTime = System.currentTimeMillis() + Math.round(segments.get(segments.size()-1).getDuration());
 				}
 			}
 		}
+
+		/**
+		 * Stop using this url because its segments are numbered differently to the other urls, so
+		 * the segment with a sequence number from here is not the same as the one from the others.
+		 * @param sequenceNumber The sequence number of the segment that didn't match.
+		 */
+		private void onMisaligned(int sequenceNumber) {
+			misaligned = true;
+			recentSegmentUrls.clear();
+			logger.warn("Segment "+sequenceNumber+" in remote playlist at \""+playlistUrl.toExternalForm()+"\" does not match the same segment from the other urls, so that url will no longer be used.");
+			playlistPollerRegistry.unsubscribe(playlistUrl, this);
+			if (!hasWorkingAlternative(this)) {
+				logger.warn("No remote playlists left so stopping capture.");
+				stopCapture();
+			}
+		}
+		
+		@Override
+		public void onPlaylistRequestFailed() {
+			synchronized(lock) {
+				if (captureState != HlsPlaylistCaptureState.CAPTURING || misaligned) {
+					return;
+				}
+				failing = true;
+				if (hasWorkingAlternative(this)) {
+					logger.warn("Error retrieving playlist from \""+playlistUrl.toExternalForm()+"\" so relying on the other urls.");
+					return;
+				}
+				logger.warn("Error retrieving playlist so stopping capture.");
+				stopCapture();
+			}
+		}
+	}
+	
+	/**
+	 * Determine if there is a url other than the one for the listener provided which is working.
+	 * @param listener
+	 * @return
+	 */
+	private boolean hasWorkingAlternative(PlaylistPollListener listener) {
+		for (PlaylistPollListener playlistPollListener : playlistPollListeners) {
+			if (playlistPollListener != listener && !playlistPollListener.failing && !playlistPollListener.misaligned) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Determine if segments with the same sequence number from different urls are the same segment.
+	 * @param a
+	 * @param b
+	 * @return
+	 */
+	private static boolean isSameSegment(M3u8Segment a, M3u8Segment b) {
+		return Math.abs(a.getDuration() - b.getDuration()) <= SEGMENT_DURATION_TOLERANCE && a.getDiscontinuityFlag() == b.getDiscontinuityFlag();
 	}
 	
-	private void addNewSegment(JSONObject item, int seqNum) {
-		JSONObject itemProperties = (JSONObject) item.get("properties");
-		float duration = Float.parseFloat(String.valueOf(itemProperties.get("duration")));
-		boolean discontinuityFlag = (boolean) itemProperties.get("discontinuity");
-		URL segmentUrl = null;
-		try {
-			segmentUrl = new URL(playlist.getUrl(), String.valueOf(itemProperties.get("uri")));
-		} catch (MalformedURLException e) {
+	private void addNewSegment(M3u8Segment item, int seqNum) {
+		float duration = item.getDuration();
+		boolean discontinuityFlag = item.getDiscontinuityFlag();
+		// the urls where this segment can be downloaded from, in the same order as the playlist urls
+		ArrayList<URL> segmentUrls = new ArrayList<>();
+		synchronized(lock) {
+			for (PlaylistPollListener playlistPollListener : playlistPollListeners) {
+				URL segmentUrl = playlistPollListener.getSegmentUrl(seqNum, item.getUri());
+				if (segmentUrl != null && !segmentUrls.contains(segmentUrl)) {
+					segmentUrls.add(segmentUrl);
+				}
+			}
+		}
+		if (segmentUrls.isEmpty()) {
 			throw(new IncompletePlaylistException());
 		}
-		HlsSegmentFileProxy hlsSegmentFile = hlsSegmentFileStore.getSegment(segmentUrl);
+		HlsSegmentFileProxy hlsSegmentFile = hlsSegmentFileStore.getSegment(segmentUrls.toArray(new URL[segmentUrls.size()]), downloadGroup, seqNum);
 		hlsSegmentFile.registerStateChangeCallback(new HlsSegmentFileStateChangeHandler(hlsSegmentFile));
 		synchronized(lock) {
 			segments.add(new HlsSegment(hlsSegmentFile, seqNum, duration, discontinuityFlag));
@@ -3,8 +3,7 @@ package uk.co.la1tv.dvrBridgeService.hlsRecorder;
 import java.io.File;
 import java.net.URL;
 import java.util.HashSet;
-
-import javax.annotation.PostConstruct;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Scope;
@@ -23,27 +22,50 @@ public class HlsSegmentFile {
 	@Autowired
 	private DownloadManager downloadManager;
 	
+	@Autowired
+	private HlsSegmentFileStore hlsSegmentFileStore;
+	
+	@Autowired
+	private SegmentContentStore segmentContentStore;
+	
 	private final Object lock = new Object();
 	
 	private final URL remoteUrl; // the url that this segment was located at
-	private final ServableFile localFile; // the local location
+	private final URL[] remoteUrls; // all of the urls the segment is available at, starting with remoteUrl
+	private ServableFile localFile; // the local location. This may be shared with other segments with the same content
+	private final DownloadManager.DownloadGroup downloadGroup;
+	private final int sequenceNumber;
 	private HlsSegmentFileState state = HlsSegmentFileState.DOWNLOAD_PENDING;
+	private long fileSize = 0;
+	// the hash of the file content if the file is in the SegmentContentStore
+	private String contentHash = null;
 	private HashSet<IHlsSegmentFileStateChangeListener> stateChangeCallbacks = new HashSet<>();
 
-	// the number of proxies that are wanting to access to the file
-	private int numProxiesAccessingFile = 0;
+	// the number of proxies that are wanting to access to the file.
+	// this becomes RETIRED once there are no proxies and the download has finished,
+	// after which it can no longer be acquired
+	private final AtomicInteger numProxiesAccessingFile = new AtomicInteger(0);
+	private static final int RETIRED = -1;
 	
 	/**
-	 * @param remoteUrl The url where the segment should be downloaded from.
+	 * @param remoteUrls The urls where the segment can be downloaded from. The first is the primary one.
 	 * @param localFile The file where the segment should be downloaded to.
+	 * @param downloadGroup The group that the download should be queued in.
+	 * @param sequenceNumber The sequence number of the segment, used to prioritise the download.
 	 */
-	public HlsSegmentFile(URL remoteUrl, ServableFile localFile) {
-		this.remoteUrl = remoteUrl;
+	public HlsSegmentFile(URL[] remoteUrls, ServableFile localFile, DownloadManager.DownloadGroup downloadGroup, int sequenceNumber) {
+		this.remoteUrl = remoteUrls[0];
+		this.remoteUrls = remoteUrls;
 		this.localFile = localFile;
+		this.downloadGroup = downloadGroup;
+		this.sequenceNumber = sequenceNumber;
 	}
 	
-	@PostConstruct
-	private void onPostConstruct() {
+	/**
+	 * Start downloading the file.
+	 * This should only be called from the HlsSegmentFileStore, once the segment has been added to it.
+	 */
+	public void startDownload() {
 		downloadFile();
 	}
 	
@@ -75,6 +97,16 @@ public class HlsSegmentFile {
 		}
 	}
 	
+	/**
+	 * Get the size of the downloaded file in bytes.
+	 * @return The size, or 0 if the file has not been downloaded.
+	 */
+	public long getFileSize() {
+		synchronized(lock) {
+			return fileSize;
+		}
+	}
+	
 	public boolean registerStateChangeCallback(IHlsSegmentFileStateChangeListener callback) {
 		synchronized(stateChangeCallbacks) {
 			return stateChangeCallbacks.add(callback);
@@ -88,34 +120,40 @@ public class HlsSegmentFile {
 	}
 	
 	/**
-	 * Delete the file.
-	 * This should only be called from the HlsSegmentFileStore
+	 * Get the hash of the file content if the file may be shared with other segments.
+	 * @return The hash, or null if the file belongs to this segment only.
 	 */
-	public boolean deleteFile() {
+	public String getContentHash() {
 		synchronized(lock) {
-			if (state != HlsSegmentFileState.DOWNLOADED) {
-				throw(new RuntimeException("Must be in the DOWNLOADED state in order to be deleted."));
-			}
-			if (numProxiesAccessingFile > 0) {
-				throw(new RuntimeException("There are currently proxies that haven't called release() yet."));
-			}
-			return localFile.delete();
+			return contentHash;
 		}
 	}
 	
 
 	/**
-	 * Called by a proxy when it is created for this file.
+	 * Take a reference to this file for a new proxy.
+	 * This should only be called from the HlsSegmentFileStore.
+	 * @return false if the file has been retired and can no longer be used.
 	 */
-	public void onProxyCreated() {
-		numProxiesAccessingFile++;
+	public boolean acquire() {
+		while(true) {
+			int num = numProxiesAccessingFile.get();
+			if (num == RETIRED) {
+				return false;
+			}
+			if (numProxiesAccessingFile.compareAndSet(num, num+1)) {
+				return true;
+			}
+		}
 	}
 	
 	/**
 	 * Called by a proxy when the release method is called on it.
 	 */
 	public void onProxyReleased() {
-		numProxiesAccessingFile--;
+		if (numProxiesAccessingFile.decrementAndGet() == 0) {
+			retireIfUnused();
+		}
 	}
 	
 	/**
@@ -123,7 +161,22 @@ public class HlsSegmentFile {
 	 * @return
 	 */
 	public int getNumProxiesAccessingFile() {
-		return numProxiesAccessingFile;
+		return Math.max(numProxiesAccessingFile.get(), 0);
+	}
+	
+	/**
+	 * Retire the file if there are no proxies accessing it and it has finished downloading,
+	 * and let the store know so that it can be removed.
+	 */
+	private void retireIfUnused() {
+		HlsSegmentFileState state = getState();
+		if (state != HlsSegmentFileState.DOWNLOADED && state != HlsSegmentFileState.DOWNLOAD_FAILED) {
+			// this will be checked again when the download finishes
+			return;
+		}
+		if (numProxiesAccessingFile.compareAndSet(0, RETIRED)) {
+			hlsSegmentFileStore.onSegmentRetired(this);
+		}
 	}
 	
 	private void callStateChangeCallbacks(HlsSegmentFileState newState) {
@@ -149,7 +202,7 @@ public class HlsSegmentFile {
 	 * Download the file and make it available.
 	 */
 	private void downloadFile() {
-		downloadManager.queueDownload(remoteUrl, localFile, new FileDownloadCallback());
+		downloadManager.queueDownload(remoteUrls, localFile, new FileDownloadCallback(), downloadGroup, sequenceNumber);
 	}
 	
 	private class FileDownloadCallback implements IHlsSegmentFileDownloadCallback {
@@ -160,8 +213,19 @@ public class HlsSegmentFile {
 		}
 		
 		@Override
-		public void onCompletion(boolean success) {
+		public void onCompletion(boolean success, String hash) {
+			if (success) {
+				synchronized(lock) {
+					fileSize = localFile.length();
+					if (hash != null) {
+						// switch to an existing file with the same content if there is one
+						localFile = segmentContentStore.add(hash, localFile, fileSize);
+						contentHash = hash;
+					}
+				}
+			}
 			updateState(success ? HlsSegmentFileState.DOWNLOADED : HlsSegmentFileState.DOWNLOAD_FAILED);
+			retireIfUnused();
 		}
 		
 	}
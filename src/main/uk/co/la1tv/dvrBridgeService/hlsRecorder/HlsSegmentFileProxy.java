@@ -22,8 +22,10 @@ public class HlsSegmentFileProxy {
 	
 	private HashSet<IHlsSegmentFileStateChangeListener> callbacks = new HashSet<>();
 
+	/**
+	 * @param hlsSegmentFile The file to proxy. A reference must already have been acquired for this proxy.
+	 */
 	public HlsSegmentFileProxy(HlsSegmentFile hlsSegmentFile) {
-		hlsSegmentFile.onProxyCreated();
 		this.hlsSegmentFile = hlsSegmentFile;
 	}
 	
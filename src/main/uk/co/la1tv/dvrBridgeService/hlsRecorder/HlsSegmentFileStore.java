@@ -1,14 +1,8 @@
 package uk.co.la1tv.dvrBridgeService.hlsRecorder;
 
 import java.net.URL;
-import java.util.HashMap;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
 
-import javax.annotation.PostConstruct;
-import javax.annotation.PreDestroy;
-
-import org.apache.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.ApplicationContext;
 import org.springframework.stereotype.Service;
@@ -20,93 +14,99 @@ import uk.co.la1tv.dvrBridgeService.servableFiles.ServableFileGenerator;
 /**
  * Holds references to all of the segment files that have been downloaded
  * to the server.
+ * 
+ * Segments are reference counted by their proxies. When the last proxy to a segment
+ * is released (and the segment has finished downloading) the segment is removed
+ * from the store and its file is queued in the SegmentDeletionQueue, or released from the
+ * SegmentContentStore if the file may be shared with other segments.
  */
 @Service
 public class HlsSegmentFileStore {
 	
-	private static Logger logger = Logger.getLogger(HlsSegmentFileStore.class);
-	
 	@Autowired
 	private ApplicationContext context;
 	
 	@Autowired
 	private ServableFileGenerator hlsFileGenerator;
 	
-	// Key is the url object
-	private final HashMap<URL, HlsSegmentFile> segments = new HashMap<>();
-	
-	private final Timer cleanupTimer = new Timer();
+	@Autowired
+	private SegmentDeletionQueue deletionQueue;
 	
-	@PostConstruct
-	private void onPostConstruct() {
-		cleanupTimer.schedule(new CleanupTask(), 10000, 10000);
-	}
+	@Autowired
+	private SegmentContentStore contentStore;
 	
-	@PreDestroy
-	private void onPreDestroy() {
-		cleanupTimer.cancel();
-		cleanupTimer.purge();
-	}
+	// Key is the external form of the primary url. (URL.equals() and URL.hashCode() can perform dns lookups)
+	private final ConcurrentHashMap<String, HlsSegmentFile> segments = new ConcurrentHashMap<>();
 
 	/**
 	 * Get a segment that is/was located at the specified url.
 	 * If the segment does not already exist locally it will
 	 * be downloaded.
-	 * @param remoteUrl
+	 * @param remoteUrls The urls the segment is available at. The first is the primary one which identifies the segment.
+	 * @param downloadGroup The group to queue the download in if it needs downloading.
+	 * @param sequenceNumber The sequence number of the segment in the remote playlist.
 	 * @return
 	 */
-	public HlsSegmentFileProxy getSegment(URL remoteUrl) {
-		synchronized(segments) {
-			if (segments.containsKey(remoteUrl)) {
-				return createProxy(segments.get(remoteUrl));
+	public HlsSegmentFileProxy getSegment(URL[] remoteUrls, DownloadManager.DownloadGroup downloadGroup, int sequenceNumber) {
+		String key = remoteUrls[0].toExternalForm();
+		HlsSegmentFile newSegment = null;
+		while(true) {
+			HlsSegmentFile segment = segments.get(key);
+			if (segment == null) {
+				if (newSegment == null) {
+					// created outside of the map so that other lookups are never blocked on this.
+					// the download is not started until the segment has been added, so if another
+					// thread wins the race this one can just be discarded
+					ServableFile localFile = hlsFileGenerator.generateServableFile(FileHelper.getExtension(remoteUrls[0].getFile()));
+					newSegment = context.getBean(HlsSegmentFile.class, remoteUrls, localFile, downloadGroup, sequenceNumber);
+				}
+				segment = segments.putIfAbsent(key, newSegment);
+				if (segment == null) {
+					// the new segment can't have been retired because nothing else has had access to it yet
+					newSegment.acquire();
+					newSegment.startDownload();
+					return createProxy(newSegment);
+				}
+			}
+			if (segment.acquire()) {
+				return createProxy(segment);
 			}
-			ServableFile localFile = hlsFileGenerator.generateServableFile(FileHelper.getExtension(remoteUrl.getFile()));
-			HlsSegmentFile newSegment = context.getBean(HlsSegmentFile.class, remoteUrl, localFile);
-			segments.put(remoteUrl, newSegment);
-			HlsSegmentFileProxy newSegmentProxy = createProxy(newSegment);
-			return newSegmentProxy;
+			// the segment has been retired and is about to be removed, so remove it now
+			// and try again, which will result in a new one being created
+			segments.remove(key, segment);
 		}
 	}
 	
-	private HlsSegmentFileProxy createProxy(HlsSegmentFile segmentFile) {
-		return new HlsSegmentFileProxy(segmentFile);
+	/**
+	 * Get the number of segments that are currently in the store.
+	 * @return
+	 */
+	public int getNumSegments() {
+		return segments.size();
 	}
 	
-	private class CleanupTask extends TimerTask {
-
-		@Override
-		public void run() {
-			synchronized(segments) {
-				// check for any files that no longer have any proxies pointing at
-				// them and delete the source files and remove them from the array
-				HashMap<URL, HlsSegmentFile> clone = new HashMap<>(segments);
-				for (URL key : clone.keySet()) {
-					HlsSegmentFile segmentFile = segments.get(key);
-					if (segmentFile.getNumProxiesAccessingFile() == 0) {
-						// no one is accessing this file so remove it if possible
-						HlsSegmentFileState state = segmentFile.getState();
-						if (state != HlsSegmentFileState.DOWNLOADED && state != HlsSegmentFileState.DOWNLOAD_FAILED) {
-							// file must be in one of these 2 states before it can be removed
-							// from the segments array
-							continue;
-						}
-						
-						if (state == HlsSegmentFileState.DOWNLOADED) {
-							if (!segmentFile.deleteFile()) {
-								// file failed to delete for some reason
-								logger.warn("Failed to delete file "+segmentFile.getFile().getAbsolutePath());
-								continue;
-							}
-							logger.debug("Deleted file "+segmentFile.getFile().getAbsolutePath());
-						}
-						
-						// can now safely be removed from the segments array and will be garbage collected
-						segments.remove(key);
-					}
-				}
-			}
+	/**
+	 * Called by a segment file once it has no references and has finished downloading.
+	 * The segment can no longer be acquired at this point.
+	 * @param segmentFile
+	 */
+	void onSegmentRetired(HlsSegmentFile segmentFile) {
+		segments.remove(segmentFile.getRemoteUrl().toExternalForm(), segmentFile);
+		if (segmentFile.getState() != HlsSegmentFileState.DOWNLOADED) {
+			return;
 		}
-		
+		String contentHash = segmentFile.getContentHash();
+		if (contentHash != null) {
+			// the file may be shared, so it is deleted once no segments are using it
+			contentStore.release(contentHash);
+		}
+		else {
+			deletionQueue.queue(segmentFile.getFile(), segmentFile.getFileSize());
+		}
+	}
+	
+	private HlsSegmentFileProxy createProxy(HlsSegmentFile segmentFile) {
+		return new HlsSegmentFileProxy(segmentFile);
 	}
 	
 }
@@ -7,8 +7,6 @@ import java.util.ArrayList;
 import javax.annotation.PostConstruct;
 
 import org.apache.log4j.Logger;
-import org.json.simple.JSONArray;
-import org.json.simple.JSONObject;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.ApplicationContext;
 import org.springframework.context.annotation.Scope;
@@ -16,6 +14,8 @@ import org.springframework.stereotype.Component;
 
 import uk.co.la1tv.dvrBridgeService.helpers.M3u8ParserHelper;
 import uk.co.la1tv.dvrBridgeService.hlsRecorder.exceptions.PlaylistRequestException;
+import uk.co.la1tv.dvrBridgeService.m3u8Parser.M3u8MasterPlaylist;
+import uk.co.la1tv.dvrBridgeService.m3u8Parser.M3u8StreamInfo;
 
 /**
  * Represents a variant playlist file.
@@ -32,42 +32,84 @@ public class HlsVariantPlaylist extends HlsPlaylist {
 	@Autowired
 	private ApplicationContext context;
 	private HlsPlaylist[] hlsPlaylists = null;
-	private final URL variantPlaylistUrl;
+	private final URL[] variantPlaylistUrls;
 	
 	public HlsVariantPlaylist(URL variantPlaylistUrl) {
-		super(variantPlaylistUrl);
-		this.variantPlaylistUrl = variantPlaylistUrl;
+		this(new URL[]{variantPlaylistUrl});
+	}
+	
+	/**
+	 * @param variantPlaylistUrls Equivalent urls for the variant playlist. The first is the primary one.
+	 */
+	public HlsVariantPlaylist(URL[] variantPlaylistUrls) {
+		super(variantPlaylistUrls);
+		this.variantPlaylistUrls = variantPlaylistUrls;
 	}
 	
 	@PostConstruct
 	private void onPostConstruct() {
 		// make request to get list of playlists this contains and create them
-		JSONObject playlistInfo;
-		try {
-			playlistInfo = m3u8ParserHelper.getPlaylistInfo(variantPlaylistUrl);
-		} catch (PlaylistRequestException e) {
-			e.printStackTrace();
+		// the first variant playlist that can be retrieved is used, and the others provide
+		// alternate urls for each of its playlists
+		ArrayList<URL> masterPlaylistUrls = new ArrayList<>();
+		ArrayList<M3u8MasterPlaylist> masterPlaylists = new ArrayList<>();
+		for (URL variantPlaylistUrl : variantPlaylistUrls) {
+			M3u8MasterPlaylist masterPlaylist;
+			try {
+				masterPlaylist = m3u8ParserHelper.getMasterPlaylist(variantPlaylistUrl);
+			} catch (PlaylistRequestException e) {
+				e.printStackTrace();
+				logger.warn("Unable to retrieve variant playlist from \""+variantPlaylistUrl.toExternalForm()+"\".");
+				continue;
+			}
+			masterPlaylistUrls.add(variantPlaylistUrl);
+			masterPlaylists.add(masterPlaylist);
+		}
+		if (masterPlaylists.isEmpty()) {
 			return;
 		}
 		
+		M3u8MasterPlaylist masterPlaylist = masterPlaylists.get(0);
 		ArrayList<HlsPlaylist> playlists = new ArrayList<>();
 		try {
-			JSONObject items = (JSONObject) playlistInfo.get("items");
-			JSONArray streamItems = (JSONArray) items.get("StreamItem");
-			for (int i=0; i<streamItems.size(); i++) {
-				JSONObject streamItem = (JSONObject) streamItems.get(i);
-				JSONObject attributes = (JSONObject) ((JSONObject) streamItem.get("attributes")).get("attributes");
-				int bandwidth = new Integer(String.valueOf(attributes.get("bandwidth")));
-				String codecs = (String) attributes.get("codecs");
+			M3u8StreamInfo[] streams = masterPlaylist.getStreams();
+			// the streams in the other variant playlists that have been paired with one in the first
+			ArrayList<boolean[]> pairedStreams = new ArrayList<>();
+			for (M3u8MasterPlaylist alternatePlaylist : masterPlaylists) {
+				pairedStreams.add(new boolean[alternatePlaylist.getStreams().length]);
+			}
+			for (int i=0; i<streams.length; i++) {
+				M3u8StreamInfo stream = streams[i];
+				int bandwidth = stream.getBandwidth();
+				String codecs = stream.getCodecs();
 				if (codecs == null) {
 					throw(new RuntimeException("Missing codecs string."));
 				}
-				JSONArray resolutionJsonArray = (JSONArray) attributes.get("resolution");
-				Dimension resolution = new Dimension(new Integer(String.valueOf(resolutionJsonArray.get(0))), new Integer(String.valueOf(resolutionJsonArray.get(1))));
-				JSONObject properties = (JSONObject) streamItem.get("properties");
-				String uriString = (String) properties.get("uri");
-				URL playlistUrl = new URL(getUrl(), String.valueOf(uriString));
-				playlists.add((HlsPlaylist) context.getBean("HlsPlaylist", playlistUrl, bandwidth, codecs, resolution));
+				if (!stream.hasResolution()) {
+					throw(new RuntimeException("Missing resolution."));
+				}
+				Dimension resolution = new Dimension(stream.getResolutionWidth(), stream.getResolutionHeight());
+				ArrayList<URL> playlistUrls = new ArrayList<>();
+				playlistUrls.add(new URL(masterPlaylistUrls.get(0), stream.getUri()));
+				for (int j=1; j<masterPlaylists.size(); j++) {
+					// streams are paired by their attributes, not their position in the playlist
+					M3u8StreamInfo[] alternateStreams = masterPlaylists.get(j).getStreams();
+					int index = findMatchingStream(stream, alternateStreams, pairedStreams.get(j));
+					if (index == -1) {
+						logger.warn("Variant playlist at \""+masterPlaylistUrls.get(j).toExternalForm()+"\" has no stream matching "+stream.getUri()+" so it will not be used for that stream.");
+						continue;
+					}
+					pairedStreams.get(j)[index] = true;
+					playlistUrls.add(new URL(masterPlaylistUrls.get(j), alternateStreams[index].getUri()));
+				}
+				playlists.add((HlsPlaylist) context.getBean("HlsPlaylist", playlistUrls.toArray(new URL[playlistUrls.size()]), bandwidth, codecs, resolution));
+			}
+			for (int j=1; j<masterPlaylists.size(); j++) {
+				for (boolean paired : pairedStreams.get(j)) {
+					if (!paired) {
+						logger.warn("Ignoring a stream in the variant playlist at \""+masterPlaylistUrls.get(j).toExternalForm()+"\" because it doesn't match any stream at the primary url.");
+					}
+				}
 			}
 			
 		}
@@ -80,6 +122,26 @@ public class HlsVariantPlaylist extends HlsPlaylist {
 		hlsPlaylists = playlists.toArray(new HlsPlaylist[playlists.size()]);
 	}
 	
+	/**
+	 * Find the stream which has the same bandwidth, resolution and codecs as the one provided.
+	 * @param stream
+	 * @param candidates
+	 * @param paired The candidates which have already been paired with another stream, which are skipped.
+	 * @return The index of the matching candidate, or -1 if there isn't one.
+	 */
+	private static int findMatchingStream(M3u8StreamInfo stream, M3u8StreamInfo[] candidates, boolean[] paired) {
+		for (int i=0; i<candidates.length; i++) {
+			M3u8StreamInfo candidate = candidates[i];
+			if (paired[i] || candidate.getBandwidth() != stream.getBandwidth() || !stream.getCodecs().equals(candidate.getCodecs()) || !candidate.hasResolution()) {
+				continue;
+			}
+			if (candidate.getResolutionWidth() == stream.getResolutionWidth() && candidate.getResolutionHeight() == stream.getResolutionHeight()) {
+				return i;
+			}
+		}
+		return -1;
+	}
+	
 	/**
 	 * Get the playlist objects corresponding to the playlists
 	 * the variant playlist contains.
@@ -9,7 +9,8 @@ public interface ICaptureStateChangeListener {
 	 * was triggered. It is possible for the state to have changed
 	 * between this method getting called and after the callback thread was
 	 * started. If this is the case the callback will be called again with these
-	 * changes. The callback will get called once for every state change.
+	 * changes. The callback will get called once for every state change, in order,
+	 * and never at the same time as another callback for the same capture.
 	 * @param newState
 	 */
 	void onStateChange(HlsPlaylistCaptureState newState);
@@ -10,6 +10,7 @@ public interface IHlsSegmentFileDownloadCallback {
 	/**
 	 * Called when a download completes.
 	 * @param success True if the download succeeded.
+	 * @param contentHash The hex SHA-256 hash of the file, or null if it wasn't hashed.
 	 */
-	void onCompletion(boolean success);
+	void onCompletion(boolean success, String contentHash);
 }
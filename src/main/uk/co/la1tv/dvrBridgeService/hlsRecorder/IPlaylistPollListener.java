@@ -0,0 +1,21 @@
+package uk.co.la1tv.dvrBridgeService.hlsRecorder;
+
+import uk.co.la1tv.dvrBridgeService.m3u8Parser.M3u8MediaPlaylist;
+
+public interface IPlaylistPollListener {
+	
+	/**
+	 * Called each time the playlist has been retrieved.
+	 * The playlist only contains the segments that were added since the previous
+	 * time this was called for any listener of the playlist (see M3u8MediaPlaylist).
+	 * The last segment in the playlist is always available.
+	 * Calls for the same playlist are never made at the same time and are in order.
+	 * @param playlist
+	 */
+	void onPlaylistRetrieved(M3u8MediaPlaylist playlist);
+	
+	/**
+	 * Called when there was an error retrieving or parsing the playlist.
+	 */
+	void onPlaylistRequestFailed();
+}
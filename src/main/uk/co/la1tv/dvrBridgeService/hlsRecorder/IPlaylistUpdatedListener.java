@@ -9,8 +9,10 @@ public interface IPlaylistUpdatedListener {
 	 * was triggered. It is possible for the playlist content to have changed
 	 * between this method getting called and after the callback thread was
 	 * started. If this is the case the callback will be called again with these
-	 * changes. The callback will get called once for every change.
+	 * changes. Calls are made in order and never at the same time as another
+	 * callback for the same capture. If several changes happen before the callback
+	 * runs it will only be called once with the latest content.
 	 * @param playlistContent
 	 */
-	void onPlaylistUpdated(String playlistContent);
+	void onPlaylistUpdated(PlaylistSnapshot playlistContent);
 }
@@ -0,0 +1,10 @@
+package uk.co.la1tv.dvrBridgeService.hlsRecorder;
+
+public interface ISegmentFileCommitCallback {
+	
+	/**
+	 * Called when the file has been moved to its final location, or the move failed.
+	 * @param success True if the file is now at its final location.
+	 */
+	void onCommitted(boolean success);
+}
@@ -0,0 +1,126 @@
+package uk.co.la1tv.dvrBridgeService.hlsRecorder;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Builds a playlist which is only ever appended to.
+ *
+ * The content is kept encoded in a buffer which grows by doubling, so appending an entry
+ * only encodes that entry, and snapshots of the content can be taken without copying it.
+ * Where each segment starts is also recorded, so that delta updates can be generated from a snapshot.
+ *
+ * This is not thread safe, but the snapshots are immutable and can be used from any thread.
+ */
+public class PlaylistBuilder {
+	
+	private static final int INITIAL_CAPACITY = 4096;
+	private static final int INITIAL_SEGMENTS_CAPACITY = 256;
+	
+	private byte[] buffer = new byte[INITIAL_CAPACITY];
+	private int length = 0;
+	// the offset in the buffer that each segment starts at
+	private int[] segmentOffsets = new int[INITIAL_SEGMENTS_CAPACITY];
+	// the total duration of the playlist at the end of each segment
+	private double[] segmentEndTimes = new double[INITIAL_SEGMENTS_CAPACITY];
+	private int numSegments = 0;
+	private int mediaSequence = 0;
+	private int targetDuration = 0;
+	private double canSkipUntil = 0;
+	private boolean ended = false;
+	private PlaylistSnapshot snapshot = createSnapshot();
+	
+	/**
+	 * Add text to the end of the playlist.
+	 * @param text
+	 */
+	public void append(String text) {
+		byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+		if (length + bytes.length > buffer.length) {
+			// existing snapshots keep the old buffer, which is never modified again
+			byte[] newBuffer = new byte[Math.max(buffer.length*2, length+bytes.length)];
+			System.arraycopy(buffer, 0, newBuffer, 0, length);
+			buffer = newBuffer;
+		}
+		// bytes past the end of existing snapshots can be written without affecting them
+		System.arraycopy(bytes, 0, buffer, length, bytes.length);
+		length += bytes.length;
+	}
+	
+	/**
+	 * Add a segment to the end of the playlist.
+	 * @param entry All of the lines for the segment, including any tags that apply to it.
+	 * @param duration The duration of the segment in seconds.
+	 */
+	public void appendSegment(String entry, double duration) {
+		if (numSegments == segmentOffsets.length) {
+			// same as the buffer, the old arrays are left to the existing snapshots
+			int[] newSegmentOffsets = new int[segmentOffsets.length*2];
+			System.arraycopy(segmentOffsets, 0, newSegmentOffsets, 0, numSegments);
+			segmentOffsets = newSegmentOffsets;
+			double[] newSegmentEndTimes = new double[segmentEndTimes.length*2];
+			System.arraycopy(segmentEndTimes, 0, newSegmentEndTimes, 0, numSegments);
+			segmentEndTimes = newSegmentEndTimes;
+		}
+		double startTime = numSegments == 0 ? 0 : segmentEndTimes[numSegments-1];
+		segmentOffsets[numSegments] = length;
+		segmentEndTimes[numSegments] = startTime + duration;
+		append(entry);
+		numSegments++;
+	}
+	
+	/**
+	 * Add the EXT-X-ENDLIST tag, which means no more segments will be added.
+	 */
+	public void appendEndList() {
+		append("#EXT-X-ENDLIST\n");
+		ended = true;
+	}
+	
+	/**
+	 * Set the media sequence number of the first segment, which is in the playlist header.
+	 * @param mediaSequence
+	 */
+	public void setMediaSequence(int mediaSequence) {
+		this.mediaSequence = mediaSequence;
+	}
+	
+	/**
+	 * Set the target duration that is in the playlist header.
+	 * @param targetDuration The target duration in seconds.
+	 */
+	public void setTargetDuration(int targetDuration) {
+		this.targetDuration = targetDuration;
+	}
+	
+	/**
+	 * Set the CAN-SKIP-UNTIL value that is in the playlist header, which means delta updates
+	 * can be generated from the snapshots.
+	 * @param canSkipUntil The number of seconds from the end of the playlist that segments can be skipped until.
+	 */
+	public void setCanSkipUntil(double canSkipUntil) {
+		this.canSkipUntil = canSkipUntil;
+	}
+	
+	/**
+	 * Get the length of the playlist in bytes.
+	 * @return
+	 */
+	public int getLength() {
+		return length;
+	}
+	
+	/**
+	 * Get a view of the content as it is now.
+	 * @return
+	 */
+	public PlaylistSnapshot snapshot() {
+		if (snapshot.getLength() != length) {
+			snapshot = createSnapshot();
+		}
+		return snapshot;
+	}
+	
+	private PlaylistSnapshot createSnapshot() {
+		return new PlaylistSnapshot(buffer, length, segmentOffsets, segmentEndTimes, numSegments, mediaSequence, targetDuration, canSkipUntil, ended);
+	}
+}
@@ -0,0 +1,214 @@
+package uk.co.la1tv.dvrBridgeService.hlsRecorder;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import uk.co.la1tv.dvrBridgeService.helpers.IMediaPlaylistCallback;
+import uk.co.la1tv.dvrBridgeService.helpers.M3u8ParserHelper;
+import uk.co.la1tv.dvrBridgeService.m3u8Parser.M3u8MediaPlaylist;
+import uk.co.la1tv.dvrBridgeService.scheduling.ScheduledTask;
+import uk.co.la1tv.dvrBridgeService.scheduling.SharedScheduler;
+
+/**
+ * Polls remote media playlists for changes.
+ * There is only ever one poller for each playlist url, so if several captures are
+ * recording the same playlist it is only retrieved and parsed once each time and
+ * the result is passed to all of them.
+ * The time between polls adapts to when the next segment is expected (see PlaylistReloadSchedule).
+ */
+@Service
+public class PlaylistPollerRegistry {
+	
+	private static Logger logger = Logger.getLogger(PlaylistPollerRegistry.class);
+	
+	@Value("${app.playlistUpdateInterval}")
+	private int playlistUpdateInterval;
+	
+	@Autowired
+	private M3u8ParserHelper m3u8ParserHelper;
+	
+	@Autowired
+	private SharedScheduler scheduler;
+	
+	// key is the playlist url as a string (URL.equals() can result in dns lookups)
+	private final HashMap<String, Poller> pollers = new HashMap<>();
+	
+	/**
+	 * Start informing the listener each time the playlist is retrieved.
+	 * The first poll of a new playlist happens straight away.
+	 * @param playlistUrl
+	 * @param listener
+	 */
+	public void subscribe(URL playlistUrl, IPlaylistPollListener listener) {
+		String key = playlistUrl.toExternalForm();
+		synchronized(pollers) {
+			Poller poller = pollers.get(key);
+			if (poller == null) {
+				poller = new Poller(playlistUrl);
+				pollers.put(key, poller);
+				// so that the last response is always kept for the conditional request
+				m3u8ParserHelper.reserveCacheEntry();
+				poller.addListener(listener);
+				poller.start();
+				logger.debug("Started polling \""+key+"\".");
+			}
+			else {
+				poller.addListener(listener);
+			}
+		}
+	}
+	
+	/**
+	 * Stop informing the listener about the playlist.
+	 * When a playlist has no listeners left it stops being polled.
+	 * The listener may still receive a call that was already in progress.
+	 * @param playlistUrl
+	 * @param listener
+	 */
+	public void unsubscribe(URL playlistUrl, IPlaylistPollListener listener) {
+		String key = playlistUrl.toExternalForm();
+		synchronized(pollers) {
+			Poller poller = pollers.get(key);
+			if (poller == null) {
+				return;
+			}
+			if (poller.removeListener(listener)) {
+				// no more listeners
+				poller.stop();
+				pollers.remove(key);
+				m3u8ParserHelper.releaseCacheEntry();
+				logger.debug("Stopped polling \""+key+"\".");
+			}
+		}
+	}
+	
+	/**
+	 * Polls a single playlist and informs its listeners.
+	 */
+	private class Poller {
+		
+		private final URL playlistUrl;
+		private final ArrayList<IPlaylistPollListener> listeners = new ArrayList<>();
+		private final Object lock = new Object();
+		private ScheduledTask nextPoll = null;
+		private final PlaylistReloadSchedule reloadSchedule = new PlaylistReloadSchedule(playlistUpdateInterval);
+		private boolean stopped = false;
+		// the result of the last request. Used so that only new segments need parsing
+		private M3u8MediaPlaylist lastMediaPlaylist = null;
+		
+		public Poller(URL playlistUrl) {
+			this.playlistUrl = playlistUrl;
+		}
+		
+		public void start() {
+			scheduleNextPoll(0);
+		}
+		
+		public void stop() {
+			synchronized(lock) {
+				stopped = true;
+				if (nextPoll != null) {
+					nextPoll.cancel();
+				}
+			}
+		}
+		
+		private void scheduleNextPoll(long delay) {
+			synchronized(lock) {
+				if (stopped) {
+					return;
+				}
+				nextPoll = scheduler.schedule(new PollTask(), delay);
+			}
+		}
+		
+		public void addListener(IPlaylistPollListener listener) {
+			synchronized(listeners) {
+				listeners.add(listener);
+			}
+		}
+		
+		/**
+		 * Remove the listener and return true if there are no listeners left.
+		 */
+		public boolean removeListener(IPlaylistPollListener listener) {
+			synchronized(listeners) {
+				listeners.remove(listener);
+				return listeners.isEmpty();
+			}
+		}
+		
+		private IPlaylistPollListener[] getListeners() {
+			synchronized(listeners) {
+				// a copy because listeners may unsubscribe in the callback
+				return listeners.toArray(new IPlaylistPollListener[listeners.size()]);
+			}
+		}
+		
+		private class PollTask implements Runnable {
+			
+			@Override
+			public void run() {
+				// the request is made asynchronously so that a slow server doesn't hold up a scheduler thread.
+				// The next poll is scheduled when this one has finished.
+				m3u8ParserHelper.getMediaPlaylistAsync(playlistUrl, lastMediaPlaylist, new IMediaPlaylistCallback() {
+					@Override
+					public void onMediaPlaylistRetrieved(M3u8MediaPlaylist playlist) {
+						onPollComplete(playlist);
+					}
+					
+					@Override
+					public void onMediaPlaylistRequestFailed() {
+						logger.warn("Error retrieving playlist \""+playlistUrl.toExternalForm()+"\".");
+						onPollComplete(null);
+					}
+				});
+			}
+			
+			private void onPollComplete(final M3u8MediaPlaylist mediaPlaylist) {
+				// the listeners are informed on the scheduler instead of the http client thread
+				// that the response arrived on, so that they can't hold up other responses
+				scheduler.schedule(new Runnable() {
+					@Override
+					public void run() {
+						informListeners(mediaPlaylist);
+					}
+				}, 0);
+			}
+			
+			private void informListeners(M3u8MediaPlaylist mediaPlaylist) {
+				long now = System.currentTimeMillis();
+				if (mediaPlaylist != null) {
+					lastMediaPlaylist = mediaPlaylist;
+					reloadSchedule.onPlaylistRetrieved(mediaPlaylist, now);
+				}
+				else {
+					reloadSchedule.onPlaylistRequestFailed(now);
+				}
+				
+				for (IPlaylistPollListener listener : getListeners()) {
+					try {
+						if (mediaPlaylist != null) {
+							listener.onPlaylistRetrieved(mediaPlaylist);
+						}
+						else {
+							listener.onPlaylistRequestFailed();
+						}
+					}
+					catch(Exception e) {
+						// make sure one listener can't prevent others being informed
+						e.printStackTrace();
+						logger.error("Error in playlist poll listener.");
+					}
+				}
+				scheduleNextPoll(reloadSchedule.getNextDelay(System.currentTimeMillis()));
+			}
+		}
+	}
+}
@@ -0,0 +1,104 @@
+package uk.co.la1tv.dvrBridgeService.hlsRecorder;
+
+import uk.co.la1tv.dvrBridgeService.m3u8Parser.M3u8MediaPlaylist;
+import uk.co.la1tv.dvrBridgeService.m3u8Parser.M3u8Segment;
+
+/**
+ * Works out when a live media playlist should next be reloaded.
+ * 
+ * After a new segment appears, the following segment is expected the duration of that segment
+ * after it arrived. Between segments the playlist is not reloaded, and from a little before the
+ * expected time it is reloaded every minimum interval until the segment appears, so a new segment
+ * is seen at most one minimum interval after it is added. If the segment is more than a target
+ * duration late the playlist is reloaded every half target duration, as the hls specification
+ * requires for a playlist that has not changed.
+ * 
+ * The specification also asks for half a target duration between reloads of an unchanged playlist
+ * when a segment is expected. That is not followed inside the window around the expected time,
+ * because it would add up to half a target duration of latency to every segment, and the
+ * number of requests is still bounded by the minimum interval and the length of the window.
+ */
+public class PlaylistReloadSchedule {
+	
+	private final int minInterval;
+	// the target duration in milliseconds, or null if not known yet
+	private Long targetDuration = null;
+	// the unix time (milliseconds) when the next segment is expected
+	private Long nextSegmentExpectedTime = null;
+	// the unix time (milliseconds) of the previous reload
+	private Long lastReloadTime = null;
+	
+	/**
+	 * @param minInterval The minimum time in milliseconds between reloads.
+	 */
+	public PlaylistReloadSchedule(int minInterval) {
+		this.minInterval = minInterval;
+	}
+	
+	/**
+	 * Call each time the playlist has been retrieved.
+	 * @param playlist The result of the reload. Any segments it contains are treated as new.
+	 * @param time The unix time (milliseconds) that the playlist was retrieved.
+	 */
+	public synchronized void onPlaylistRetrieved(M3u8MediaPlaylist playlist, long time) {
+		if (playlist.hasTargetDuration()) {
+			targetDuration = (long) Math.round(playlist.getTargetDuration()*1000);
+		}
+		M3u8Segment lastSegment = playlist.getLastSegment();
+		// the segments in the first result could have arrived at any time, so they can't be used to
+		// predict the next one, and until then the playlist is reloaded every minimum interval
+		if (lastReloadTime != null && playlist.getSegments().length > 0 && lastSegment != null) {
+			// it arrived at some point since the last reload, which was at most a minimum interval ago
+			// if it arrived around when it was expected
+			long arrivalTime = time;
+			if (nextSegmentExpectedTime != null && targetDuration != null && lastReloadTime >= nextSegmentExpectedTime + targetDuration) {
+				// it was very late so reloads were half a target duration apart, and it could have arrived
+				// any time since the last one. Assume the earliest, so that the window for the next
+				// segment doesn't start after it has already arrived
+				arrivalTime = lastReloadTime;
+			}
+			nextSegmentExpectedTime = arrivalTime + Math.round(lastSegment.getDuration()*1000);
+		}
+		lastReloadTime = time;
+	}
+	
+	/**
+	 * Call when a reload failed.
+	 * @param time The unix time (milliseconds) that the request failed.
+	 */
+	public synchronized void onPlaylistRequestFailed(long time) {
+		lastReloadTime = time;
+	}
+	
+	/**
+	 * Get the amount of time (milliseconds) to wait before the next reload.
+	 * @param time The current unix time (milliseconds).
+	 * @return
+	 */
+	public synchronized long getNextDelay(long time) {
+		if (targetDuration == null || nextSegmentExpectedTime == null) {
+			return minInterval;
+		}
+		long windowStart = nextSegmentExpectedTime - getEarlyMargin();
+		if (time < windowStart) {
+			// wait until just before the next segment is expected
+			return Math.max(minInterval, windowStart - time);
+		}
+		if (time < nextSegmentExpectedTime + targetDuration) {
+			// the segment is expected any moment
+			return minInterval;
+		}
+		// the segment is very late, so wait half the target duration between reloads
+		return Math.max(minInterval, targetDuration / 2);
+	}
+	
+	/**
+	 * Get how long (milliseconds) before the expected time of the next segment to start reloading
+	 * quickly. The arrival time of the last segment is only known to within a minimum interval, and
+	 * segments are allowed to be a little shorter than the target duration.
+	 */
+	private long getEarlyMargin() {
+		return minInterval + (targetDuration != null ? targetDuration / 10 : 0);
+	}
+	
+}
@@ -0,0 +1,129 @@
+package uk.co.la1tv.dvrBridgeService.hlsRecorder;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The content of a generated playlist at a point in time.
+ * This is immutable. The content is shared with the PlaylistBuilder it came from, which
+ * never changes the part of the buffer a snapshot covers.
+ */
+public final class PlaylistSnapshot {
+	
+	private final byte[] buffer;
+	private final int length;
+	private final int[] segmentOffsets;
+	private final double[] segmentEndTimes;
+	private final int numSegments;
+	private final int mediaSequence;
+	private final int targetDuration;
+	private final double canSkipUntil;
+	private final boolean ended;
+	
+	PlaylistSnapshot(byte[] buffer, int length, int[] segmentOffsets, double[] segmentEndTimes, int numSegments, int mediaSequence, int targetDuration, double canSkipUntil, boolean ended) {
+		this.buffer = buffer;
+		this.length = length;
+		this.segmentOffsets = segmentOffsets;
+		this.segmentEndTimes = segmentEndTimes;
+		this.numSegments = numSegments;
+		this.mediaSequence = mediaSequence;
+		this.targetDuration = targetDuration;
+		this.canSkipUntil = canSkipUntil;
+		this.ended = ended;
+	}
+	
+	/**
+	 * Get the length of the playlist in bytes.
+	 * @return
+	 */
+	public int getLength() {
+		return length;
+	}
+	
+	/**
+	 * Get the number of segments in the playlist.
+	 * @return
+	 */
+	public int getNumSegments() {
+		return numSegments;
+	}
+	
+	/**
+	 * Get the media sequence number of the first segment in the playlist.
+	 * The playlist is only appended to while this stays the same.
+	 * @return
+	 */
+	public int getMediaSequence() {
+		return mediaSequence;
+	}
+	
+	/**
+	 * Get the media sequence number that the next segment added to the playlist will have.
+	 * @return
+	 */
+	public int getNextMediaSequence() {
+		return mediaSequence + numSegments;
+	}
+	
+	/**
+	 * Get the target duration in the playlist header, in seconds.
+	 * @return
+	 */
+	public int getTargetDuration() {
+		return targetDuration;
+	}
+	
+	/**
+	 * Determine if the playlist has the EXT-X-ENDLIST tag, so will not change again.
+	 * @return
+	 */
+	public boolean isEnded() {
+		return ended;
+	}
+	
+	/**
+	 * Get the UTF-8 encoded content.
+	 * @return A read only buffer.
+	 */
+	public ByteBuffer asByteBuffer() {
+		return ByteBuffer.wrap(buffer, 0, length).asReadOnlyBuffer();
+	}
+	
+	/**
+	 * Generate a delta update, where the segments that are more than CAN-SKIP-UNTIL seconds from
+	 * the end of the playlist are replaced with an EXT-X-SKIP tag.
+	 * @return The UTF-8 encoded delta update, or null if the playlist does not support delta
+	 *         updates or there are no segments that can be skipped.
+	 */
+	public ByteBuffer createDeltaUpdate() {
+		if (canSkipUntil <= 0 || numSegments == 0) {
+			return null;
+		}
+		double skipBoundary = segmentEndTimes[numSegments-1] - canSkipUntil;
+		// the segments that end before the skip boundary can be skipped
+		int numSkipped = Arrays.binarySearch(segmentEndTimes, 0, numSegments, skipBoundary);
+		numSkipped = numSkipped >= 0 ? numSkipped+1 : -(numSkipped+1);
+		if (numSkipped == 0) {
+			return null;
+		}
+		// everything before the first segment is the header
+		int headerLength = segmentOffsets[0];
+		int remainingOffset = segmentOffsets[numSkipped];
+		byte[] skipTag = ("#EXT-X-SKIP:SKIPPED-SEGMENTS="+numSkipped+"\n").getBytes(StandardCharsets.UTF_8);
+		ByteBuffer delta = ByteBuffer.allocate(headerLength + skipTag.length + length - remainingOffset);
+		delta.put(buffer, 0, headerLength);
+		delta.put(skipTag);
+		delta.put(buffer, remainingOffset, length - remainingOffset);
+		delta.flip();
+		return delta.asReadOnlyBuffer();
+	}
+	
+	/**
+	 * Get the content as a string. This decodes the whole playlist.
+	 */
+	@Override
+	public String toString() {
+		return new String(buffer, 0, length, StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,150 @@
+package uk.co.la1tv.dvrBridgeService.hlsRecorder;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import uk.co.la1tv.dvrBridgeService.servableFiles.ServableFile;
+
+/**
+ * Keeps track of the content of downloaded segment files by their hash, so that segments
+ * at different urls which have the same content (e.g. a repeated slate or advert, or a url
+ * with a cache busting query string) share one file on disk.
+ * 
+ * Each file is reference counted by the segments using it and is queued for deletion
+ * once the last one releases it.
+ */
+@Service
+public class SegmentContentStore {
+	
+	private static Logger logger = Logger.getLogger(SegmentContentStore.class);
+	
+	@Autowired
+	private SegmentDeletionQueue deletionQueue;
+	
+	// key is the hash of the content
+	private final ConcurrentHashMap<String, SharedContent> contents = new ConcurrentHashMap<>();
+	// the number of bytes which would be on disk if identical segments were not sharing files
+	private final AtomicLong numBytesSaved = new AtomicLong(0);
+	private final AtomicLong totalNumBytesSaved = new AtomicLong(0);
+	
+	/**
+	 * Add a file which has just been downloaded.
+	 * If a file with the same content already exists that one is returned and the new file
+	 * is deleted, otherwise the new file is returned.
+	 * Each call must be matched with a call to release() with the same hash.
+	 * @param contentHash The hash of the file content.
+	 * @param file
+	 * @param fileSize The size of the file in bytes.
+	 * @return The file that should be used.
+	 */
+	public ServableFile add(String contentHash, ServableFile file, long fileSize) {
+		SharedContent newContent = null;
+		while(true) {
+			SharedContent content = contents.get(contentHash);
+			if (content == null) {
+				if (newContent == null) {
+					newContent = new SharedContent(file, fileSize);
+				}
+				content = contents.putIfAbsent(contentHash, newContent);
+				if (content == null) {
+					return file;
+				}
+			}
+			if (content.acquire()) {
+				logger.debug("Segment \""+file.getAbsolutePath()+"\" is the same as \""+content.file.getAbsolutePath()+"\". Using that one instead.");
+				numBytesSaved.addAndGet(fileSize);
+				totalNumBytesSaved.addAndGet(fileSize);
+				deletionQueue.queue(file, fileSize);
+				return content.file;
+			}
+			// the last reference has just been released and it's about to be deleted
+			contents.remove(contentHash, content);
+		}
+	}
+	
+	/**
+	 * Release a file that was returned from add().
+	 * @param contentHash
+	 */
+	public void release(String contentHash) {
+		SharedContent content = contents.get(contentHash);
+		if (content == null) {
+			throw(new RuntimeException("There is no content with this hash."));
+		}
+		if (!content.release()) {
+			// still being used by other segments
+			numBytesSaved.addAndGet(-content.fileSize);
+			return;
+		}
+		contents.remove(contentHash, content);
+		deletionQueue.queue(content.file, content.fileSize);
+	}
+	
+	/**
+	 * Get the number of bytes that are currently being saved by segments sharing files.
+	 * @return
+	 */
+	public long getNumBytesSaved() {
+		return numBytesSaved.get();
+	}
+	
+	/**
+	 * Get the total number of bytes that have not needed to be stored because a segment
+	 * had the same content as another one.
+	 * @return
+	 */
+	public long getTotalNumBytesSaved() {
+		return totalNumBytesSaved.get();
+	}
+	
+	/**
+	 * Get the number of different files that are being shared.
+	 * @return
+	 */
+	public int getNumFiles() {
+		return contents.size();
+	}
+	
+	private static class SharedContent {
+		
+		// the value of numReferences once the last reference has been released
+		private static final int RETIRED = -1;
+		
+		private final ServableFile file;
+		private final long fileSize;
+		private final AtomicInteger numReferences = new AtomicInteger(1);
+		
+		public SharedContent(ServableFile file, long fileSize) {
+			this.file = file;
+			this.fileSize = fileSize;
+		}
+		
+		/**
+		 * @return false if the last reference has already been released.
+		 */
+		public boolean acquire() {
+			while(true) {
+				int num = numReferences.get();
+				if (num == RETIRED) {
+					return false;
+				}
+				if (numReferences.compareAndSet(num, num+1)) {
+					return true;
+				}
+			}
+		}
+		
+		/**
+		 * @return true if this was the last reference.
+		 */
+		public boolean release() {
+			return numReferences.decrementAndGet() == 0 && numReferences.compareAndSet(0, RETIRED);
+		}
+	}
+	
+}
@@ -0,0 +1,226 @@
+package uk.co.la1tv.dvrBridgeService.hlsRecorder;
+
+import java.io.File;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import uk.co.la1tv.dvrBridgeService.scheduling.ScheduledTask;
+import uk.co.la1tv.dvrBridgeService.scheduling.SharedScheduler;
+import uk.co.la1tv.dvrBridgeService.servableFiles.SegmentCache;
+
+/**
+ * Deletes segment files in the background.
+ * 
+ * Removing a long capture can release thousands of segments at once, so files are deleted
+ * in small batches at a limited rate rather than all at once, which would hold up writes
+ * of live segments to the same disk. Deleting is paused while a lot of data is being
+ * downloaded, but never for longer than the configured maximum so that the disk does not fill up.
+ */
+@Service
+public class SegmentDeletionQueue {
+	
+	private static Logger logger = Logger.getLogger(SegmentDeletionQueue.class);
+	
+	// the amount of time (milliseconds) between batches
+	private static final long BATCH_INTERVAL = 100;
+	
+	@Autowired
+	private SharedScheduler scheduler;
+	
+	@Autowired
+	private DownloadManager downloadManager;
+	
+	@Autowired
+	private SegmentCache segmentCache;
+	
+	@Value("${app.maxDeletionsPerSecond}")
+	private long maxDeletionsPerSecond;
+	@Value("${app.maxDeletionBytesPerSecond}")
+	private long maxDeletionBytesPerSecond;
+	@Value("${app.deletionBatchSize}")
+	private int deletionBatchSize;
+	@Value("${app.deletionPauseDownloadRate}")
+	private long deletionPauseDownloadRate;
+	@Value("${app.deletionMaxPauseTime}")
+	private int deletionMaxPauseTime;
+	
+	private final ConcurrentLinkedQueue<QueuedFile> queue = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger numQueuedFiles = new AtomicInteger(0);
+	private final AtomicLong numQueuedBytes = new AtomicLong(0);
+	private final AtomicLong numDeletedFiles = new AtomicLong(0);
+	private final AtomicLong numFailedDeletions = new AtomicLong(0);
+	private final AtomicLong totalPauseTime = new AtomicLong(0);
+	
+	// only accessed from the batch task, which never runs concurrently with itself
+	private TokenBucket fileTokenBucket = null;
+	private TokenBucket byteTokenBucket = null;
+	private long nextBatchTime = 0;
+	private long pauseStartTime = -1;
+	
+	private ScheduledTask batchTask = null;
+	
+	@PostConstruct
+	private void onPostConstruct() {
+		fileTokenBucket = new TokenBucket(maxDeletionsPerSecond, 0);
+		byteTokenBucket = new TokenBucket(maxDeletionBytesPerSecond, 0);
+		batchTask = scheduler.scheduleRepeating(new BatchTask(), BATCH_INTERVAL, BATCH_INTERVAL);
+	}
+	
+	@PreDestroy
+	private void onPreDestroy() {
+		batchTask.cancel();
+	}
+	
+	/**
+	 * Queue a segment file to be deleted.
+	 * Nothing must be using the file anymore.
+	 * @param file
+	 * @param fileSize The size of the file in bytes.
+	 */
+	public void queue(File file, long fileSize) {
+		// stop serving it from memory straight away
+		segmentCache.remove(file.getName());
+		numQueuedFiles.incrementAndGet();
+		numQueuedBytes.addAndGet(fileSize);
+		queue.add(new QueuedFile(file, fileSize));
+	}
+	
+	/**
+	 * Get the number of files waiting to be deleted.
+	 * @return
+	 */
+	public int getNumQueuedFiles() {
+		return numQueuedFiles.get();
+	}
+	
+	/**
+	 * Get the total size in bytes of the files waiting to be deleted.
+	 * @return
+	 */
+	public long getNumQueuedBytes() {
+		return numQueuedBytes.get();
+	}
+	
+	/**
+	 * Get the number of files that have been deleted.
+	 * @return
+	 */
+	public long getNumDeletedFiles() {
+		return numDeletedFiles.get();
+	}
+	
+	/**
+	 * Get the number of files that could not be deleted.
+	 * @return
+	 */
+	public long getNumFailedDeletions() {
+		return numFailedDeletions.get();
+	}
+	
+	/**
+	 * Get the total amount of time (milliseconds) that deleting has been paused for because of downloads.
+	 * @return
+	 */
+	public long getTotalPauseTime() {
+		return totalPauseTime.get();
+	}
+	
+	/**
+	 * Determine if deleting should be paused because a lot of data is currently being written.
+	 * @param now
+	 * @return
+	 */
+	private boolean shouldPause(long now) {
+		if (deletionPauseDownloadRate <= 0 || downloadManager.getCurrentDownloadRate() < deletionPauseDownloadRate) {
+			endPause(now);
+			return false;
+		}
+		if (pauseStartTime == -1) {
+			pauseStartTime = now;
+		}
+		else if (now - pauseStartTime >= deletionMaxPauseTime * 1000L) {
+			// been paused for too long. Delete a batch and then pause again
+			totalPauseTime.addAndGet(now - pauseStartTime);
+			pauseStartTime = now;
+			return false;
+		}
+		return true;
+	}
+	
+	private void endPause(long now) {
+		if (pauseStartTime != -1) {
+			totalPauseTime.addAndGet(now - pauseStartTime);
+			pauseStartTime = -1;
+		}
+	}
+	
+	private void delete(File file) {
+		if (!file.delete()) {
+			// file failed to delete for some reason
+			numFailedDeletions.incrementAndGet();
+			logger.warn("Failed to delete file "+file.getAbsolutePath());
+			return;
+		}
+		numDeletedFiles.incrementAndGet();
+		logger.debug("Deleted file "+file.getAbsolutePath());
+	}
+	
+	private static class QueuedFile {
+		
+		private final File file;
+		private final long fileSize;
+		
+		public QueuedFile(File file, long fileSize) {
+			this.file = file;
+			this.fileSize = fileSize;
+		}
+	}
+	
+	private class BatchTask implements Runnable {
+
+		@Override
+		public void run() {
+			long now = System.currentTimeMillis();
+			if (queue.isEmpty()) {
+				endPause(now);
+				return;
+			}
+			if (now < nextBatchTime || shouldPause(now)) {
+				return;
+			}
+			for (int i=0; i<deletionBatchSize; i++) {
+				QueuedFile queuedFile = queue.poll();
+				if (queuedFile == null) {
+					break;
+				}
+				long fileSize = queuedFile.fileSize;
+				numQueuedFiles.decrementAndGet();
+				numQueuedBytes.addAndGet(-fileSize);
+				try {
+					delete(queuedFile.file);
+				} catch(Exception e) {
+					e.printStackTrace();
+					numFailedDeletions.incrementAndGet();
+					logger.warn("Error when trying to delete a segment file.");
+				}
+				long waitTime = Math.max(fileTokenBucket.take(1, false), byteTokenBucket.take(fileSize, false));
+				if (waitTime > 0) {
+					// over one of the rate limits. Wait until it has been paid back
+					nextBatchTime = now + waitTime;
+					break;
+				}
+			}
+		}
+		
+	}
+	
+}
@@ -0,0 +1,223 @@
+package uk.co.la1tv.dvrBridgeService.hlsRecorder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+/**
+ * Moves downloaded segment files from the temporary file they were written to, to their final
+ * location in the web directory, so that a file can never be served before it is complete.
+ * 
+ * Depending on the fsync policy the file is either moved straight away ("none"), flushed to disk
+ * and then moved ("file"), or added to a batch which is flushed and moved together every
+ * interval ("batch"). When files are flushed the directory is also flushed after they have been
+ * moved, so that the move itself survives a crash. Flushing is done on a thread of its own, so
+ * that neither the downloads nor the shared scheduler are ever blocked by it.
+ */
+@Service
+public class SegmentFileCommitter {
+	
+	private static Logger logger = Logger.getLogger(SegmentFileCommitter.class);
+	
+	// the extension added to files that are still being written to
+	public static final String TEMP_FILE_EXTENSION = "part";
+	
+	private static enum FsyncPolicy {NONE, FILE, BATCH}
+	
+	@Value("${app.segmentFsyncPolicy}")
+	private String fsyncPolicyStr;
+	@Value("${app.segmentFsyncBatchInterval}")
+	private long fsyncBatchInterval;
+	
+	private FsyncPolicy fsyncPolicy = null;
+	private final Object lock = new Object();
+	private ArrayList<PendingFile> pendingFiles = new ArrayList<>();
+	// all flushing happens on this one thread, so the disk is only ever handling one flush from here at a time
+	private ScheduledExecutorService ioExecutor = null;
+	
+	@PostConstruct
+	private void onPostConstruct() {
+		try {
+			fsyncPolicy = FsyncPolicy.valueOf(fsyncPolicyStr.toUpperCase());
+		}
+		catch(IllegalArgumentException e) {
+			throw(new RuntimeException("Invalid segment fsync policy \""+fsyncPolicyStr+"\"."));
+		}
+		if (fsyncPolicy == FsyncPolicy.NONE) {
+			return;
+		}
+		ioExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "segment-committer");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		if (fsyncPolicy == FsyncPolicy.BATCH) {
+			ioExecutor.scheduleWithFixedDelay(new BatchTask(), fsyncBatchInterval, fsyncBatchInterval, TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	@PreDestroy
+	private void onPreDestroy() {
+		if (ioExecutor != null) {
+			ioExecutor.shutdownNow();
+		}
+	}
+	
+	/**
+	 * Get the temporary file that should be written to before the file is moved to the destination.
+	 * @param destination
+	 * @return
+	 */
+	public File getTempFile(File destination) {
+		return new File(destination.getParentFile(), destination.getName()+"."+TEMP_FILE_EXTENSION);
+	}
+	
+	/**
+	 * Move the temporary file to the destination once it has been completely written.
+	 * The callback may be called from a different thread.
+	 * @param destination
+	 * @param callback
+	 */
+	public void commit(File destination, ISegmentFileCommitCallback callback) {
+		final PendingFile pendingFile = new PendingFile(getTempFile(destination), destination, callback);
+		if (fsyncPolicy == FsyncPolicy.NONE) {
+			pendingFile.finish(pendingFile.move());
+		}
+		else if (fsyncPolicy == FsyncPolicy.FILE) {
+			ioExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					boolean success = pendingFile.sync() && pendingFile.move();
+					if (success) {
+						syncDirectory(pendingFile.destination.getParentFile());
+					}
+					pendingFile.finish(success);
+				}
+			});
+		}
+		else {
+			synchronized(lock) {
+				pendingFiles.add(pendingFile);
+			}
+		}
+	}
+	
+	/**
+	 * Flush a directory to disk, so that files that have been moved into it stay moved after a crash.
+	 * A failure is only logged, because the files have already been moved.
+	 * @param directory
+	 */
+	private static void syncDirectory(File directory) {
+		try (FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+			channel.force(true);
+		} catch (IOException e) {
+			// not supported on some platforms (e.g. windows)
+			logger.warn("Failed to flush directory \""+directory.getAbsolutePath()+"\" to disk. "+e);
+		}
+	}
+	
+	private static class PendingFile {
+		
+		private final File tempFile;
+		private final File destination;
+		private final ISegmentFileCommitCallback callback;
+		
+		public PendingFile(File tempFile, File destination, ISegmentFileCommitCallback callback) {
+			this.tempFile = tempFile;
+			this.destination = destination;
+			this.callback = callback;
+		}
+		
+		public boolean sync() {
+			try (FileChannel channel = FileChannel.open(tempFile.toPath(), StandardOpenOption.WRITE)) {
+				channel.force(true);
+				return true;
+			} catch (IOException e) {
+				e.printStackTrace();
+				logger.warn("Failed to flush \""+tempFile.getAbsolutePath()+"\" to disk.");
+				return false;
+			}
+		}
+		
+		public boolean move() {
+			try {
+				Files.move(tempFile.toPath(), destination.toPath(), StandardCopyOption.ATOMIC_MOVE);
+				return true;
+			} catch (IOException e) {
+				e.printStackTrace();
+				logger.warn("Failed to move \""+tempFile.getAbsolutePath()+"\" to \""+destination.getAbsolutePath()+"\".");
+				return false;
+			}
+		}
+		
+		public void finish(boolean success) {
+			if (!success) {
+				tempFile.delete();
+			}
+			callback.onCommitted(success);
+		}
+	}
+	
+	private class BatchTask implements Runnable {
+
+		@Override
+		public void run() {
+			ArrayList<PendingFile> batch;
+			synchronized(lock) {
+				if (pendingFiles.isEmpty()) {
+					return;
+				}
+				batch = pendingFiles;
+				pendingFiles = new ArrayList<>();
+			}
+			// flush all of the files, then move them, then flush the directories they were moved into
+			// once, and only then make them available
+			boolean[] success = new boolean[batch.size()];
+			LinkedHashSet<File> directories = new LinkedHashSet<>();
+			for (int i=0; i<batch.size(); i++) {
+				success[i] = batch.get(i).sync();
+			}
+			for (int i=0; i<batch.size(); i++) {
+				PendingFile pendingFile = batch.get(i);
+				success[i] = success[i] && pendingFile.move();
+				if (success[i]) {
+					directories.add(pendingFile.destination.getParentFile());
+				}
+			}
+			for (File directory : directories) {
+				syncDirectory(directory);
+			}
+			for (int i=0; i<batch.size(); i++) {
+				try {
+					batch.get(i).finish(success[i]);
+				}
+				catch(Exception e) {
+					// make sure the other callbacks are still called
+					e.printStackTrace();
+					logger.error("Error in segment commit callback.");
+				}
+			}
+		}
+		
+	}
+	
+}
@@ -0,0 +1,79 @@
+package uk.co.la1tv.dvrBridgeService.hlsRecorder;
+
+/**
+ * Limits the rate that bytes are downloaded at.
+ * Tokens (bytes) are added at the configured rate up to one second's worth. Bytes are taken
+ * from the bucket after they have been received, and if the bucket goes into debt the
+ * download should wait until it has been paid back before reading any more.
+ * 
+ * Also measures the rate that bytes are being taken from the bucket.
+ */
+class TokenBucket {
+	
+	// the amount of time (milliseconds) that the measured rate is calculated over
+	private static final long RATE_WINDOW = 1000;
+	
+	// bytes per second, or 0 if there is no limit
+	private final long rate;
+	// the number of bytes that can be taken beyond the balance if the caller is allowed to borrow
+	private final long borrowAllowance;
+	private double balance;
+	private long lastRefillTime = System.currentTimeMillis();
+	
+	private long windowStartTime = System.currentTimeMillis();
+	private long numBytesInWindow = 0;
+	private long measuredRate = 0;
+	
+	/**
+	 * @param rate The maximum rate in bytes per second, or 0 for no limit.
+	 * @param borrowAllowance The number of bytes that can be borrowed ahead of other traffic.
+	 */
+	public TokenBucket(long rate, long borrowAllowance) {
+		this.rate = rate;
+		this.borrowAllowance = borrowAllowance;
+		this.balance = rate;
+	}
+	
+	/**
+	 * Take bytes from the bucket.
+	 * @param numBytes
+	 * @param canBorrow If true the bytes can go into debt up to the borrow allowance without waiting.
+	 * @return The amount of time in milliseconds to wait before reading any more bytes.
+	 */
+	public synchronized long take(long numBytes, boolean canBorrow) {
+		long now = System.currentTimeMillis();
+		measure(numBytes, now);
+		if (rate <= 0) {
+			return 0;
+		}
+		// refill up to one second's worth
+		balance = Math.min(rate, balance + (now - lastRefillTime) * rate / 1000d);
+		lastRefillTime = now;
+		balance -= numBytes;
+		double limit = canBorrow ? -borrowAllowance : 0;
+		if (balance >= limit) {
+			return 0;
+		}
+		return (long) Math.ceil((limit - balance) * 1000 / rate);
+	}
+	
+	/**
+	 * Get the rate in bytes per second that bytes have been taken from the bucket recently.
+	 * @return
+	 */
+	public synchronized long getMeasuredRate() {
+		measure(0, System.currentTimeMillis());
+		return measuredRate;
+	}
+	
+	private void measure(long numBytes, long now) {
+		long windowLength = now - windowStartTime;
+		if (windowLength >= RATE_WINDOW) {
+			// if nothing has been taken for a while the rate is 0
+			measuredRate = windowLength >= 2*RATE_WINDOW ? 0 : numBytesInWindow * 1000 / windowLength;
+			numBytesInWindow = 0;
+			windowStartTime = now;
+		}
+		numBytesInWindow += numBytes;
+	}
+}
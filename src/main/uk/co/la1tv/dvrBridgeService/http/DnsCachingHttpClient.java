@@ -0,0 +1,98 @@
+package uk.co.la1tv.dvrBridgeService.http;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.HttpClientTransport;
+import org.eclipse.jetty.client.HttpDestination;
+import org.eclipse.jetty.client.Origin;
+import org.eclipse.jetty.client.api.Connection;
+import org.eclipse.jetty.util.Promise;
+import org.eclipse.jetty.util.ssl.SslContextFactory;
+
+/**
+ * A jetty http client which remembers the addresses that host names resolved to, so that
+ * opening a new connection to a host that has been connected to recently doesn't
+ * require a lookup.
+ */
+class DnsCachingHttpClient extends HttpClient {
+	
+	private final long cacheTtl;
+	// key is the host name
+	private final ConcurrentHashMap<String, CachedAddress> addresses = new ConcurrentHashMap<>();
+	private final AtomicLong hitCount = new AtomicLong(0);
+	private final AtomicLong missCount = new AtomicLong(0);
+	
+	/**
+	 * @param sslContextFactory
+	 * @param cacheTtl The amount of time in milliseconds an address will be used for.
+	 */
+	public DnsCachingHttpClient(SslContextFactory sslContextFactory, long cacheTtl) {
+		super(sslContextFactory);
+		this.cacheTtl = cacheTtl;
+	}
+	
+	public long getDnsCacheHitCount() {
+		return hitCount.get();
+	}
+	
+	public long getDnsCacheMissCount() {
+		return missCount.get();
+	}
+	
+	@Override
+	protected void newConnection(final HttpDestination destination, final Promise<Connection> promise) {
+		Origin.Address address = destination.getConnectAddress();
+		final String host = address.getHost();
+		final int port = address.getPort();
+		CachedAddress cachedAddress = addresses.get(host);
+		if (cachedAddress != null && !cachedAddress.hasExpired()) {
+			hitCount.incrementAndGet();
+			connect(new InetSocketAddress(cachedAddress.address, port), destination, promise);
+			return;
+		}
+		missCount.incrementAndGet();
+		// the lookup blocks so do it on one of the client's threads
+		getExecutor().execute(new Runnable() {
+			@Override
+			public void run() {
+				InetAddress inetAddress;
+				try {
+					inetAddress = InetAddress.getByName(host);
+				}
+				catch(Exception e) {
+					promise.failed(e);
+					return;
+				}
+				addresses.put(host, new CachedAddress(inetAddress, System.currentTimeMillis()+cacheTtl));
+				connect(new InetSocketAddress(inetAddress, port), destination, promise);
+			}
+		});
+	}
+	
+	private void connect(InetSocketAddress socketAddress, HttpDestination destination, Promise<Connection> promise) {
+		Map<String, Object> context = new HashMap<>();
+		context.put(HttpClientTransport.HTTP_DESTINATION_CONTEXT_KEY, destination);
+		context.put(HttpClientTransport.HTTP_CONNECTION_PROMISE_CONTEXT_KEY, promise);
+		getTransport().connect(socketAddress, context);
+	}
+	
+	private static class CachedAddress {
+		private final InetAddress address;
+		private final long expiryTime;
+		
+		public CachedAddress(InetAddress address, long expiryTime) {
+			this.address = address;
+			this.expiryTime = expiryTime;
+		}
+		
+		public boolean hasExpired() {
+			return System.currentTimeMillis() >= expiryTime;
+		}
+	}
+}
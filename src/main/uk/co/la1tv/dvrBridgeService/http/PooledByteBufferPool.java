@@ -0,0 +1,162 @@
+package uk.co.la1tv.dvrBridgeService.http;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.eclipse.jetty.io.ByteBufferPool;
+import org.eclipse.jetty.util.BufferUtil;
+import org.eclipse.jetty.util.LeakDetector;
+import org.eclipse.jetty.util.component.ContainerLifeCycle;
+
+/**
+ * The pool that the http client takes the buffers that responses are read into from.
+ * 
+ * Buffers are kept after they are released so that they can be reused, up to a maximum total
+ * size, so in the steady state no new buffers need to be allocated for each segment.
+ * Optionally keeps track of buffers that were garbage collected without being released.
+ */
+class PooledByteBufferPool extends ContainerLifeCycle implements ByteBufferPool {
+	
+	private static Logger logger = Logger.getLogger(PooledByteBufferPool.class);
+	
+	// buffer sizes are rounded up to a multiple of this so that similar requests can share buffers
+	private static final int SIZE_INCREMENT = 4096;
+	
+	private final long maxPooledBytes;
+	// key is the buffer capacity
+	private final ConcurrentHashMap<Integer, ConcurrentLinkedQueue<ByteBuffer>> directBuffers = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<Integer, ConcurrentLinkedQueue<ByteBuffer>> heapBuffers = new ConcurrentHashMap<>();
+	private final AtomicLong numPooledBytes = new AtomicLong(0);
+	private final AtomicLong numPooledBuffers = new AtomicLong(0);
+	private final AtomicLong numAllocations = new AtomicLong(0);
+	private final AtomicLong numBuffersInUse = new AtomicLong(0);
+	private final AtomicLong numLeaks = new AtomicLong(0);
+	private final LeakDetector<ByteBuffer> leakDetector;
+	
+	/**
+	 * @param maxPooledBytes The maximum total size of the buffers that are kept for reuse.
+	 * @param detectLeaks If true buffers that were never released are logged.
+	 */
+	public PooledByteBufferPool(long maxPooledBytes, boolean detectLeaks) {
+		this.maxPooledBytes = maxPooledBytes;
+		this.leakDetector = detectLeaks ? new BufferLeakDetector() : null;
+		if (leakDetector != null) {
+			addBean(leakDetector);
+		}
+	}
+
+	@Override
+	public ByteBuffer acquire(int size, boolean direct) {
+		int capacity = ((size + SIZE_INCREMENT - 1) / SIZE_INCREMENT) * SIZE_INCREMENT;
+		ByteBuffer buffer = null;
+		ConcurrentLinkedQueue<ByteBuffer> buffers = getBuffers(capacity, direct);
+		if (buffers != null) {
+			buffer = buffers.poll();
+		}
+		if (buffer != null) {
+			numPooledBuffers.decrementAndGet();
+			numPooledBytes.addAndGet(-capacity);
+		}
+		else {
+			numAllocations.incrementAndGet();
+			buffer = direct ? BufferUtil.allocateDirect(capacity) : BufferUtil.allocate(capacity);
+		}
+		numBuffersInUse.incrementAndGet();
+		if (leakDetector != null) {
+			leakDetector.acquired(buffer);
+		}
+		return buffer;
+	}
+
+	@Override
+	public void release(ByteBuffer buffer) {
+		if (buffer == null) {
+			return;
+		}
+		numBuffersInUse.decrementAndGet();
+		if (leakDetector != null && !leakDetector.released(buffer)) {
+			logger.warn("A buffer was released that was not acquired from the pool, or was released twice.");
+		}
+		int capacity = buffer.capacity();
+		if (capacity % SIZE_INCREMENT != 0) {
+			// not one of ours
+			return;
+		}
+		if (numPooledBytes.addAndGet(capacity) > maxPooledBytes) {
+			// pool is full so let this one be garbage collected
+			numPooledBytes.addAndGet(-capacity);
+			return;
+		}
+		BufferUtil.clear(buffer);
+		ConcurrentLinkedQueue<ByteBuffer> buffers = getBuffers(capacity, buffer.isDirect());
+		if (buffers == null) {
+			ConcurrentHashMap<Integer, ConcurrentLinkedQueue<ByteBuffer>> map = buffer.isDirect() ? directBuffers : heapBuffers;
+			ConcurrentLinkedQueue<ByteBuffer> newBuffers = new ConcurrentLinkedQueue<>();
+			buffers = map.putIfAbsent(capacity, newBuffers);
+			if (buffers == null) {
+				buffers = newBuffers;
+			}
+		}
+		numPooledBuffers.incrementAndGet();
+		buffers.offer(buffer);
+	}
+	
+	/**
+	 * Get the number of buffers that have had to be created because there wasn't one available to reuse.
+	 * @return
+	 */
+	public long getNumAllocations() {
+		return numAllocations.get();
+	}
+	
+	/**
+	 * Get the number of buffers that are waiting to be reused.
+	 * @return
+	 */
+	public long getNumPooledBuffers() {
+		return numPooledBuffers.get();
+	}
+	
+	/**
+	 * Get the total size of the buffers that are waiting to be reused.
+	 * @return
+	 */
+	public long getNumPooledBytes() {
+		return numPooledBytes.get();
+	}
+	
+	/**
+	 * Get the number of buffers that have been acquired and not released yet.
+	 * @return
+	 */
+	public long getNumBuffersInUse() {
+		return numBuffersInUse.get();
+	}
+	
+	/**
+	 * Get the number of buffers that were garbage collected without being released.
+	 * This is always 0 if leak detection is disabled.
+	 * @return
+	 */
+	public long getNumLeaks() {
+		return numLeaks.get();
+	}
+	
+	private ConcurrentLinkedQueue<ByteBuffer> getBuffers(int capacity, boolean direct) {
+		return (direct ? directBuffers : heapBuffers).get(capacity);
+	}
+	
+	private class BufferLeakDetector extends LeakDetector<ByteBuffer> {
+		
+		@Override
+		protected void leaked(LeakInfo leakInfo) {
+			numLeaks.incrementAndGet();
+			// the buffer was never released so it won't be counted as in use anymore
+			numBuffersInUse.decrementAndGet();
+			logger.warn("A buffer was garbage collected without being released. It was acquired here.", leakInfo.getStackFrames());
+		}
+	}
+}
@@ -0,0 +1,210 @@
+package uk.co.la1tv.dvrBridgeService.http;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.eclipse.jetty.client.ConnectionPool;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.PoolingHttpDestination;
+import org.eclipse.jetty.client.api.Destination;
+import org.eclipse.jetty.io.ByteBufferPool;
+import org.eclipse.jetty.util.ssl.SslContextFactory;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+/**
+ * Holds the http client that is used for all outgoing requests (segment downloads and
+ * playlist requests), so that connections to the same host are kept alive and reused
+ * instead of a new connection (and tls handshake) being made for every request.
+ * 
+ * Responses are read into direct buffers from a pool, which can be written straight to a file
+ * channel without being copied, and are reused for later responses.
+ */
+@Service
+public class SharedHttpClient {
+	
+	// the maximum number of requests that can be waiting for a connection to the same host
+	private static final int MAX_QUEUED_REQUESTS_PER_HOST = 10000;
+	
+	@Value("${http.threads}")
+	private int numThreads;
+	@Value("${http.maxConnectionsPerHost}")
+	private int maxConnectionsPerHost;
+	@Value("${http.connectTimeout}")
+	private int connectTimeout;
+	@Value("${http.idleConnectionTimeout}")
+	private int idleConnectionTimeout;
+	@Value("${http.dnsCacheTtl}")
+	private int dnsCacheTtl;
+	@Value("${http.responseBufferSize}")
+	private int responseBufferSize;
+	@Value("${http.bufferPoolMaxSize}")
+	private long bufferPoolMaxSize;
+	@Value("${http.bufferLeakDetection}")
+	private boolean bufferLeakDetection;
+	
+	private DnsCachingHttpClient httpClient = null;
+	private PooledByteBufferPool bufferPool = null;
+	
+	@PostConstruct
+	private void onPostConstruct() throws Exception {
+		QueuedThreadPool threadPool = new QueuedThreadPool(numThreads, Math.min(2, numThreads));
+		threadPool.setName("http-client");
+		threadPool.setDaemon(true);
+		SslContextFactory sslContextFactory = new SslContextFactory();
+		sslContextFactory.setEndpointIdentificationAlgorithm("HTTPS");
+		httpClient = new DnsCachingHttpClient(sslContextFactory, dnsCacheTtl*1000L);
+		httpClient.setExecutor(threadPool);
+		bufferPool = new PooledByteBufferPool(bufferPoolMaxSize, bufferLeakDetection);
+		httpClient.setByteBufferPool(bufferPool);
+		httpClient.addBean(bufferPool);
+		// the size of the buffers that response content is read into
+		httpClient.setResponseBufferSize(responseBufferSize);
+		httpClient.setConnectTimeout(connectTimeout*1000L);
+		// connections that have not been used for this long are closed
+		httpClient.setIdleTimeout(idleConnectionTimeout*1000L);
+		httpClient.setMaxConnectionsPerDestination(maxConnectionsPerHost);
+		httpClient.setMaxRequestsQueuedPerDestination(MAX_QUEUED_REQUESTS_PER_HOST);
+		httpClient.setFollowRedirects(true);
+		httpClient.start();
+	}
+	
+	@PreDestroy
+	private void onPreDestroy() throws Exception {
+		// this aborts any requests that are in progress
+		httpClient.stop();
+	}
+	
+	public HttpClient getClient() {
+		return httpClient;
+	}
+	
+	/**
+	 * Get the pool that response buffers are taken from. Other large buffers can be taken from
+	 * here as well so that they are reused.
+	 * @return
+	 */
+	public ByteBufferPool getBufferPool() {
+		return bufferPool;
+	}
+	
+	public int getMaxConnectionsPerHost() {
+		return maxConnectionsPerHost;
+	}
+	
+	/**
+	 * Get the number of hosts that there are connection pools for.
+	 * @return
+	 */
+	public int getNumHosts() {
+		return httpClient.getDestinations().size();
+	}
+	
+	/**
+	 * Get the number of connections that are currently handling a request.
+	 * @return
+	 */
+	public int getNumActiveConnections() {
+		int count = 0;
+		for (ConnectionPool pool : getConnectionPools()) {
+			count += pool.getActiveConnections().size();
+		}
+		return count;
+	}
+	
+	/**
+	 * Get the number of connections that are open and waiting to be reused.
+	 * @return
+	 */
+	public int getNumIdleConnections() {
+		int count = 0;
+		for (ConnectionPool pool : getConnectionPools()) {
+			count += pool.getIdleConnections().size();
+		}
+		return count;
+	}
+	
+	/**
+	 * Get the number of hosts where all of the connections allowed are in use.
+	 * @return
+	 */
+	public int getNumSaturatedHosts() {
+		int count = 0;
+		for (ConnectionPool pool : getConnectionPools()) {
+			if (pool.getActiveConnections().size() >= maxConnectionsPerHost) {
+				count++;
+			}
+		}
+		return count;
+	}
+	
+	/**
+	 * Get the number of requests that are waiting for a connection.
+	 * @return
+	 */
+	public int getNumQueuedRequests() {
+		int count = 0;
+		for (Destination destination : httpClient.getDestinations()) {
+			count += ((PoolingHttpDestination<?>) destination).getHttpExchanges().size();
+		}
+		return count;
+	}
+	
+	public long getDnsCacheHitCount() {
+		return httpClient.getDnsCacheHitCount();
+	}
+	
+	public long getDnsCacheMissCount() {
+		return httpClient.getDnsCacheMissCount();
+	}
+	
+	/**
+	 * Get the number of buffers that have been allocated because there wasn't one available to reuse.
+	 * @return
+	 */
+	public long getNumBufferAllocations() {
+		return bufferPool.getNumAllocations();
+	}
+	
+	/**
+	 * Get the number of buffers that are waiting to be reused.
+	 * @return
+	 */
+	public long getNumPooledBuffers() {
+		return bufferPool.getNumPooledBuffers();
+	}
+	
+	/**
+	 * Get the total size in bytes of the buffers that are waiting to be reused.
+	 * @return
+	 */
+	public long getNumPooledBufferBytes() {
+		return bufferPool.getNumPooledBytes();
+	}
+	
+	/**
+	 * Get the number of buffers that are currently being used.
+	 * @return
+	 */
+	public long getNumBuffersInUse() {
+		return bufferPool.getNumBuffersInUse();
+	}
+	
+	/**
+	 * Get the number of buffers that were never returned to the pool. Only counted if leak detection is enabled.
+	 * @return
+	 */
+	public long getNumBufferLeaks() {
+		return bufferPool.getNumLeaks();
+	}
+	
+	private ConnectionPool[] getConnectionPools() {
+		Destination[] destinations = httpClient.getDestinations().toArray(new Destination[0]);
+		ConnectionPool[] pools = new ConnectionPool[destinations.length];
+		for (int i=0; i<destinations.length; i++) {
+			pools[i] = ((PoolingHttpDestination<?>) destinations[i]).getConnectionPool();
+		}
+		return pools;
+	}
+}
@@ -0,0 +1,12 @@
+package uk.co.la1tv.dvrBridgeService.httpExceptions;
+
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+@ResponseStatus(value = org.springframework.http.HttpStatus.BAD_REQUEST)
+public final class BadRequestException extends RuntimeException {
+	private static final long serialVersionUID = -4318519224086937514L;
+	
+	public BadRequestException(String msg) {
+		super(msg);
+	}
+}
@@ -0,0 +1,28 @@
+package uk.co.la1tv.dvrBridgeService.m3u8Parser;
+
+/**
+ * Represents a parsed master (variant) playlist, which is a playlist that contains other playlists.
+ */
+public class M3u8MasterPlaylist extends M3u8Playlist {
+	
+	private final M3u8StreamInfo[] streams;
+	
+	public M3u8MasterPlaylist(M3u8StreamInfo[] streams) {
+		this.streams = streams;
+	}
+	
+	@Override
+	public boolean isMasterPlaylist() {
+		return true;
+	}
+	
+	/**
+	 * Get the streams in the order they appear in the playlist.
+	 * The returned array should not be modified.
+	 * @return
+	 */
+	public M3u8StreamInfo[] getStreams() {
+		return streams;
+	}
+	
+}
@@ -0,0 +1,133 @@
+package uk.co.la1tv.dvrBridgeService.m3u8Parser;
+
+/**
+ * Represents a parsed media playlist, which is a playlist that contains segments.
+ * 
+ * If this was the result of an incremental parse the segments will only contain the
+ * segments that were not in the previous playlist. getFirstSegmentSequenceNumber()
+ * returns the sequence number of the first of these.
+ */
+public class M3u8MediaPlaylist extends M3u8Playlist {
+	
+	private final int mediaSequence;
+	private final float targetDuration;
+	private final boolean endList;
+	private final M3u8Segment[] segments;
+	private final int firstSegmentSequenceNumber;
+	private final M3u8Segment lastSegment;
+	private final byte[] body;
+	
+	/**
+	 * Create a playlist which contains all of its segments.
+	 * @param mediaSequence The sequence number of the first segment in the playlist.
+	 * @param targetDuration The target duration in seconds, or -1 if the playlist did not contain one.
+	 * @param endList True if the playlist contained the end list tag.
+	 * @param segments The segments in the order they appeared in the playlist.
+	 */
+	public M3u8MediaPlaylist(int mediaSequence, float targetDuration, boolean endList, M3u8Segment[] segments) {
+		this(mediaSequence, targetDuration, endList, segments, mediaSequence, segments.length > 0 ? segments[segments.length-1] : null, null);
+	}
+	
+	/**
+	 * @param mediaSequence The sequence number of the first segment in the playlist.
+	 * @param targetDuration The target duration in seconds, or -1 if the playlist did not contain one.
+	 * @param endList True if the playlist contained the end list tag.
+	 * @param segments The segments that were parsed in the order they appeared in the playlist.
+	 * @param firstSegmentSequenceNumber The sequence number of the first segment in segments.
+	 * @param lastSegment The last segment in the playlist, or null if the playlist is empty.
+	 * @param body The playlist file contents that this was parsed from, or null if not available.
+	 */
+	public M3u8MediaPlaylist(int mediaSequence, float targetDuration, boolean endList, M3u8Segment[] segments, int firstSegmentSequenceNumber, M3u8Segment lastSegment, byte[] body) {
+		this.mediaSequence = mediaSequence;
+		this.targetDuration = targetDuration;
+		this.endList = endList;
+		this.segments = segments;
+		this.firstSegmentSequenceNumber = firstSegmentSequenceNumber;
+		this.lastSegment = lastSegment;
+		this.body = body;
+	}
+	
+	@Override
+	public boolean isMasterPlaylist() {
+		return false;
+	}
+	
+	/**
+	 * Get the sequence number of the first segment in the playlist.
+	 * @return
+	 */
+	public int getMediaSequence() {
+		return mediaSequence;
+	}
+	
+	/**
+	 * Determine if the playlist contained a target duration.
+	 * @return
+	 */
+	public boolean hasTargetDuration() {
+		return targetDuration >= 0;
+	}
+	
+	/**
+	 * Get the maximum duration of a segment in seconds.
+	 * This is -1 if the playlist did not contain a target duration.
+	 * @return
+	 */
+	public float getTargetDuration() {
+		return targetDuration;
+	}
+	
+	/**
+	 * Determine if the playlist has finished and no more segments will be added.
+	 * @return
+	 */
+	public boolean hasEndList() {
+		return endList;
+	}
+	
+	/**
+	 * Get the segments that were parsed in the order they appear in the playlist.
+	 * For an incremental parse this is only the new segments.
+	 * The returned array should not be modified.
+	 * @return
+	 */
+	public M3u8Segment[] getSegments() {
+		return segments;
+	}
+	
+	/**
+	 * Get the sequence number of the first segment returned from getSegments().
+	 * @return
+	 */
+	public int getFirstSegmentSequenceNumber() {
+		return firstSegmentSequenceNumber;
+	}
+	
+	/**
+	 * Get the last segment in the playlist, even if it was not parsed this time.
+	 * Returns null if the playlist contains no segments.
+	 * @return
+	 */
+	public M3u8Segment getLastSegment() {
+		return lastSegment;
+	}
+	
+	/**
+	 * Get the sequence number of the last segment in the playlist.
+	 * Only valid if getLastSegment() is not null.
+	 * @return
+	 */
+	public int getLastSegmentSequenceNumber() {
+		return firstSegmentSequenceNumber+segments.length-1;
+	}
+	
+	/**
+	 * Get the playlist file contents that this was parsed from.
+	 * Returns null if not available.
+	 * @return
+	 */
+	public byte[] getBody() {
+		return body;
+	}
+	
+}
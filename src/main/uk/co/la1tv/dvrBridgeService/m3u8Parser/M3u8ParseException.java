@@ -0,0 +1,14 @@
+package uk.co.la1tv.dvrBridgeService.m3u8Parser;
+
+/**
+ * Thrown when a playlist could not be parsed because it is not a valid m3u8 file.
+ */
+public class M3u8ParseException extends Exception {
+
+	private static final long serialVersionUID = -2216733463905432017L;
+
+	public M3u8ParseException(String msg) {
+		super(msg);
+	}
+
+}
@@ -0,0 +1,420 @@
+package uk.co.la1tv.dvrBridgeService.m3u8Parser;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Parses m3u8 playlist files (both media and master playlists) in process.
+ *
+ * The playlist is parsed straight from the bytes. Strings are only created for the
+ * values that are kept (uris and codecs).
+ */
+public class M3u8Parser {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final byte[] TAG_HEADER = ascii("#EXTM3U");
+	private static final byte[] TAG_INF = ascii("#EXTINF");
+	private static final byte[] TAG_DISCONTINUITY = ascii("#EXT-X-DISCONTINUITY");
+	private static final byte[] TAG_STREAM_INF = ascii("#EXT-X-STREAM-INF");
+	private static final byte[] TAG_TARGET_DURATION = ascii("#EXT-X-TARGETDURATION");
+	private static final byte[] TAG_MEDIA_SEQUENCE = ascii("#EXT-X-MEDIA-SEQUENCE");
+	private static final byte[] TAG_END_LIST = ascii("#EXT-X-ENDLIST");
+
+	private static final byte[] ATTRIBUTE_BANDWIDTH = ascii("BANDWIDTH");
+	private static final byte[] ATTRIBUTE_CODECS = ascii("CODECS");
+	private static final byte[] ATTRIBUTE_RESOLUTION = ascii("RESOLUTION");
+
+	/**
+	 * Parse the playlist file contents.
+	 * Returns a M3u8MasterPlaylist if the playlist contains streams, otherwise a M3u8MediaPlaylist.
+	 * @param playlist The contents of the playlist file.
+	 * @return
+	 * @throws M3u8ParseException
+	 */
+	public static M3u8Playlist parse(byte[] playlist) throws M3u8ParseException {
+		ParseState state = new ParseState();
+		parseLines(playlist, parseHeader(playlist), playlist.length, state, false);
+
+		if (!state.streams.isEmpty()) {
+			return new M3u8MasterPlaylist(state.streams.toArray(new M3u8StreamInfo[state.streams.size()]));
+		}
+		M3u8Segment[] segments = state.segments.toArray(new M3u8Segment[state.segments.size()]);
+		M3u8Segment lastSegment = segments.length > 0 ? segments[segments.length-1] : null;
+		return new M3u8MediaPlaylist(state.mediaSequence, state.targetDuration, state.endList, segments, state.mediaSequence, lastSegment, playlist);
+	}
+
+	/**
+	 * Parse a live media playlist, only parsing the segments that were added after the
+	 * last segment in the previous version of the playlist.
+	 * 
+	 * The header is parsed from the start of the file and then the file is scanned backwards
+	 * from the end until the last segment of the previous playlist is found, so the cost
+	 * depends on the number of new segments rather than the size of the playlist.
+	 * If the contents are identical to the previous contents nothing is parsed.
+	 * 
+	 * If the last segment of the previous playlist can't be found (e.g. it has left the
+	 * playlist) the whole playlist is parsed.
+	 * 
+	 * If the same segment uri appears more than once in the playlist the latest occurrence
+	 * is assumed to be the previous last segment.
+	 * @param playlist The contents of the playlist file.
+	 * @param previous The result of parsing the previous version of this playlist.
+	 * @return
+	 * @throws M3u8ParseException
+	 */
+	public static M3u8Playlist parseIncremental(byte[] playlist, M3u8MediaPlaylist previous) throws M3u8ParseException {
+		M3u8Segment anchor = previous.getLastSegment();
+		byte[] previousBody = previous.getBody();
+		if (anchor == null || previousBody == null || previous.hasEndList()) {
+			return parse(playlist);
+		}
+		int anchorSequenceNumber = previous.getLastSegmentSequenceNumber();
+
+		if (Arrays.equals(playlist, previousBody)) {
+			// nothing has changed
+			return unchanged(previous);
+		}
+
+		ParseState state = new ParseState();
+		int headerEnd = parseLines(playlist, parseHeader(playlist), playlist.length, state, true);
+		if (state.mediaSequence > anchorSequenceNumber) {
+			// the previous last segment has left the playlist
+			return parse(playlist);
+		}
+
+		int anchorLineEnd = findUriLineBackwards(playlist, headerEnd, anchor.getUri().getBytes(UTF8));
+		if (anchorLineEnd == -1) {
+			return parse(playlist);
+		}
+		parseLines(playlist, anchorLineEnd, playlist.length, state, false);
+		if (!state.streams.isEmpty()) {
+			throw(new M3u8ParseException("Media playlist contains streams."));
+		}
+
+		M3u8Segment[] segments = state.segments.toArray(new M3u8Segment[state.segments.size()]);
+		M3u8Segment lastSegment = segments.length > 0 ? segments[segments.length-1] : anchor;
+		return new M3u8MediaPlaylist(state.mediaSequence, state.targetDuration, state.endList, segments, anchorSequenceNumber+1, lastSegment, playlist);
+	}
+
+	/**
+	 * Get the result of an incremental parse for when the playlist has not changed since the
+	 * previous version. This contains no segments.
+	 * @param previous The result of parsing the previous version of the playlist.
+	 * @return
+	 */
+	public static M3u8MediaPlaylist unchanged(M3u8MediaPlaylist previous) {
+		int nextSequenceNumber = previous.getLastSegment() != null ? previous.getLastSegmentSequenceNumber()+1 : previous.getMediaSequence();
+		return new M3u8MediaPlaylist(previous.getMediaSequence(), previous.getTargetDuration(), previous.hasEndList(), new M3u8Segment[0], nextSequenceNumber, previous.getLastSegment(), previous.getBody());
+	}
+
+	/**
+	 * Check the playlist starts with the header and return the position after it.
+	 */
+	private static int parseHeader(byte[] playlist) throws M3u8ParseException {
+		int pos = 0;
+		while (pos < playlist.length) {
+			int lineEnd = findLineEnd(playlist, pos);
+			int start = skipWhitespace(playlist, pos, lineEnd);
+			int end = trimWhitespace(playlist, start, lineEnd);
+			if (start != end) {
+				// the first line must always be the header
+				if (!isTag(playlist, start, end, TAG_HEADER)) {
+					break;
+				}
+				return lineEnd+1;
+			}
+			pos = lineEnd+1;
+		}
+		throw(new M3u8ParseException("Missing #EXTM3U header."));
+	}
+
+	/**
+	 * Scan backwards from the end of the playlist until a uri line that matches uri is found.
+	 * Returns the position after the line, or -1 if it was not found before stopPos.
+	 */
+	private static int findUriLineBackwards(byte[] playlist, int stopPos, byte[] uri) {
+		int lineEnd = playlist.length;
+		while (lineEnd > stopPos) {
+			int lineStart = lastIndexOf(playlist, (byte) '\n', stopPos, lineEnd)+1;
+			if (lineStart < stopPos) {
+				lineStart = stopPos;
+			}
+			int start = skipWhitespace(playlist, lineStart, lineEnd);
+			int end = trimWhitespace(playlist, start, lineEnd);
+			if (start != end && playlist[start] != '#' && equalsRange(playlist, start, end, uri)) {
+				return lineEnd;
+			}
+			lineEnd = lineStart-1;
+		}
+		return -1;
+	}
+
+	/**
+	 * Parse the lines between from and to into the state.
+	 * If headerOnly is true this stops at the first line that belongs to an item.
+	 * Returns the position that parsing stopped at.
+	 */
+	private static int parseLines(byte[] playlist, int from, int to, ParseState state, boolean headerOnly) throws M3u8ParseException {
+		int pos = from;
+		while (pos < to) {
+			int lineEnd = findLineEnd(playlist, pos);
+			int start = skipWhitespace(playlist, pos, lineEnd);
+			int end = trimWhitespace(playlist, start, lineEnd);
+
+			if (start == end) {
+				pos = lineEnd+1;
+				continue;
+			}
+
+			if (headerOnly && (playlist[start] != '#' || isTag(playlist, start, end, TAG_INF) || isTag(playlist, start, end, TAG_DISCONTINUITY) || isTag(playlist, start, end, TAG_STREAM_INF))) {
+				return pos;
+			}
+			pos = lineEnd+1;
+
+			if (playlist[start] != '#') {
+				// this is a uri line so it completes the current item
+				String uri = new String(playlist, start, end-start, UTF8);
+				if (state.pendingStreamAttributes != null) {
+					StreamAttributes attributes = state.pendingStreamAttributes;
+					state.streams.add(new M3u8StreamInfo(uri, attributes.bandwidth, attributes.codecs, attributes.resolutionWidth, attributes.resolutionHeight));
+				}
+				else {
+					state.segments.add(new M3u8Segment(uri, state.pendingDuration, state.pendingDiscontinuity));
+				}
+				state.pendingDuration = 0;
+				state.pendingDiscontinuity = false;
+				state.pendingStreamAttributes = null;
+			}
+			else if (isTag(playlist, start, end, TAG_INF)) {
+				int valueStart = getValueStart(playlist, start, end, TAG_INF);
+				int commaIndex = indexOf(playlist, (byte) ',', valueStart, end);
+				state.pendingDuration = parseDecimal(playlist, valueStart, commaIndex == -1 ? end : commaIndex);
+			}
+			else if (isTag(playlist, start, end, TAG_DISCONTINUITY)) {
+				state.pendingDiscontinuity = true;
+			}
+			else if (isTag(playlist, start, end, TAG_STREAM_INF)) {
+				state.pendingStreamAttributes = parseStreamAttributes(playlist, getValueStart(playlist, start, end, TAG_STREAM_INF), end);
+			}
+			else if (isTag(playlist, start, end, TAG_TARGET_DURATION)) {
+				state.targetDuration = parseDecimal(playlist, getValueStart(playlist, start, end, TAG_TARGET_DURATION), end);
+			}
+			else if (isTag(playlist, start, end, TAG_MEDIA_SEQUENCE)) {
+				state.mediaSequence = parseInt(playlist, getValueStart(playlist, start, end, TAG_MEDIA_SEQUENCE), end);
+			}
+			else if (isTag(playlist, start, end, TAG_END_LIST)) {
+				state.endList = true;
+			}
+			// any other tags or comments are not needed
+		}
+		return pos;
+	}
+
+	private static StreamAttributes parseStreamAttributes(byte[] bytes, int start, int end) throws M3u8ParseException {
+		StreamAttributes attributes = new StreamAttributes();
+		int pos = start;
+		while (pos < end) {
+			int nameStart = skipWhitespace(bytes, pos, end);
+			int equalsIndex = indexOf(bytes, (byte) '=', nameStart, end);
+			if (equalsIndex == -1) {
+				throw(new M3u8ParseException("Invalid attribute list."));
+			}
+			int nameEnd = trimWhitespace(bytes, nameStart, equalsIndex);
+			int valueStart = equalsIndex+1;
+			int valueEnd;
+			int nextPos;
+			if (valueStart < end && bytes[valueStart] == '"') {
+				// quoted strings can contain commas
+				valueStart++;
+				valueEnd = indexOf(bytes, (byte) '"', valueStart, end);
+				if (valueEnd == -1) {
+					throw(new M3u8ParseException("Unterminated quoted string in attribute list."));
+				}
+				nextPos = indexOf(bytes, (byte) ',', valueEnd, end);
+			}
+			else {
+				valueEnd = indexOf(bytes, (byte) ',', valueStart, end);
+				if (valueEnd == -1) {
+					valueEnd = end;
+				}
+				nextPos = valueEnd;
+			}
+			nextPos = nextPos == -1 ? end : nextPos+1;
+
+			if (equalsRange(bytes, nameStart, nameEnd, ATTRIBUTE_BANDWIDTH)) {
+				attributes.bandwidth = parseInt(bytes, valueStart, valueEnd);
+			}
+			else if (equalsRange(bytes, nameStart, nameEnd, ATTRIBUTE_CODECS)) {
+				attributes.codecs = new String(bytes, valueStart, valueEnd-valueStart, UTF8);
+			}
+			else if (equalsRange(bytes, nameStart, nameEnd, ATTRIBUTE_RESOLUTION)) {
+				int xIndex = indexOf(bytes, (byte) 'x', valueStart, valueEnd);
+				if (xIndex == -1) {
+					throw(new M3u8ParseException("Invalid resolution."));
+				}
+				attributes.resolutionWidth = parseInt(bytes, valueStart, xIndex);
+				attributes.resolutionHeight = parseInt(bytes, xIndex+1, valueEnd);
+			}
+			pos = nextPos;
+		}
+		return attributes;
+	}
+
+	/**
+	 * Determine if the line contains the tag. The tag must be followed by the end
+	 * of the line or a ':'.
+	 */
+	private static boolean isTag(byte[] bytes, int start, int end, byte[] tag) {
+		if (end-start < tag.length) {
+			return false;
+		}
+		for (int i=0; i<tag.length; i++) {
+			if (bytes[start+i] != tag[i]) {
+				return false;
+			}
+		}
+		return end-start == tag.length || bytes[start+tag.length] == ':';
+	}
+
+	private static int getValueStart(byte[] bytes, int start, int end, byte[] tag) throws M3u8ParseException {
+		if (end-start <= tag.length+1) {
+			throw(new M3u8ParseException("Missing value for "+new String(tag, UTF8)+"."));
+		}
+		return start+tag.length+1;
+	}
+
+	private static boolean equalsRange(byte[] bytes, int start, int end, byte[] value) {
+		if (end-start != value.length) {
+			return false;
+		}
+		for (int i=0; i<value.length; i++) {
+			if (bytes[start+i] != value[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int parseInt(byte[] bytes, int start, int end) throws M3u8ParseException {
+		start = skipWhitespace(bytes, start, end);
+		end = trimWhitespace(bytes, start, end);
+		if (start == end) {
+			throw(new M3u8ParseException("Missing integer."));
+		}
+		long value = 0;
+		for (int i=start; i<end; i++) {
+			int digit = bytes[i] - '0';
+			if (digit < 0 || digit > 9) {
+				throw(new M3u8ParseException("Invalid integer."));
+			}
+			value = value*10 + digit;
+			if (value > Integer.MAX_VALUE) {
+				throw(new M3u8ParseException("Integer too large."));
+			}
+		}
+		return (int) value;
+	}
+
+	private static float parseDecimal(byte[] bytes, int start, int end) throws M3u8ParseException {
+		start = skipWhitespace(bytes, start, end);
+		end = trimWhitespace(bytes, start, end);
+		if (start == end) {
+			throw(new M3u8ParseException("Missing decimal."));
+		}
+		long value = 0;
+		long divisor = 1;
+		boolean seenPoint = false;
+		for (int i=start; i<end; i++) {
+			byte b = bytes[i];
+			if (b == '.' && !seenPoint) {
+				seenPoint = true;
+				continue;
+			}
+			int digit = b - '0';
+			if (digit < 0 || digit > 9) {
+				throw(new M3u8ParseException("Invalid decimal."));
+			}
+			if (value > Long.MAX_VALUE/100) {
+				// more precision than a float can hold so ignore the remaining digits
+				if (!seenPoint) {
+					throw(new M3u8ParseException("Decimal too large."));
+				}
+				break;
+			}
+			value = value*10 + digit;
+			if (seenPoint) {
+				divisor *= 10;
+			}
+		}
+		return (float) ((double) value / divisor);
+	}
+
+	private static int findLineEnd(byte[] bytes, int start) {
+		int index = indexOf(bytes, (byte) '\n', start, bytes.length);
+		return index == -1 ? bytes.length : index;
+	}
+
+	private static int skipWhitespace(byte[] bytes, int start, int end) {
+		while (start < end && bytes[start] <= ' ' && bytes[start] >= 0) {
+			start++;
+		}
+		return start;
+	}
+
+	private static int trimWhitespace(byte[] bytes, int start, int end) {
+		while (end > start && bytes[end-1] <= ' ' && bytes[end-1] >= 0) {
+			end--;
+		}
+		return end;
+	}
+
+	private static int lastIndexOf(byte[] bytes, byte b, int start, int end) {
+		for (int i=end-1; i>=start; i--) {
+			if (bytes[i] == b) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static int indexOf(byte[] bytes, byte b, int start, int end) {
+		for (int i=start; i<end; i++) {
+			if (bytes[i] == b) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static byte[] ascii(String str) {
+		return str.getBytes(Charset.forName("US-ASCII"));
+	}
+
+	/**
+	 * Holds the information that has been parsed so far.
+	 */
+	private static class ParseState {
+		private int mediaSequence = 0; // the default as per the specification
+		private float targetDuration = -1;
+		private boolean endList = false;
+		private final ArrayList<M3u8Segment> segments = new ArrayList<>();
+		private final ArrayList<M3u8StreamInfo> streams = new ArrayList<>();
+		// information for the item that the next uri line belongs to
+		private float pendingDuration = 0;
+		private boolean pendingDiscontinuity = false;
+		private StreamAttributes pendingStreamAttributes = null;
+	}
+
+	/**
+	 * Holds the attributes of a stream until its uri line is reached.
+	 */
+	private static class StreamAttributes {
+		private int bandwidth = 0;
+		private String codecs = null;
+		private int resolutionWidth = -1;
+		private int resolutionHeight = -1;
+	}
+
+}
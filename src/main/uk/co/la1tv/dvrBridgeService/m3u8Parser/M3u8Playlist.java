@@ -0,0 +1,16 @@
+package uk.co.la1tv.dvrBridgeService.m3u8Parser;
+
+/**
+ * Represents a parsed playlist file.
+ * This is either a M3u8MediaPlaylist or M3u8MasterPlaylist.
+ */
+public abstract class M3u8Playlist {
+	
+	/**
+	 * Determine if this is a master (variant) playlist, which contains a list of
+	 * other playlists instead of segments.
+	 * @return
+	 */
+	public abstract boolean isMasterPlaylist();
+	
+}
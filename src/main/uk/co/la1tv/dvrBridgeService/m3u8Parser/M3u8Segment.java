@@ -0,0 +1,42 @@
+package uk.co.la1tv.dvrBridgeService.m3u8Parser;
+
+/**
+ * Represents a segment entry in a media playlist.
+ */
+public class M3u8Segment {
+	
+	private final String uri;
+	private final float duration;
+	private final boolean discontinuity;
+	
+	public M3u8Segment(String uri, float duration, boolean discontinuity) {
+		this.uri = uri;
+		this.duration = duration;
+		this.discontinuity = discontinuity;
+	}
+	
+	/**
+	 * Get the uri of the segment. This may be relative to the playlist url.
+	 * @return
+	 */
+	public String getUri() {
+		return uri;
+	}
+	
+	/**
+	 * Get the duration of the segment in seconds.
+	 * @return
+	 */
+	public float getDuration() {
+		return duration;
+	}
+	
+	/**
+	 * Determine if the segment was preceded by a discontinuity tag.
+	 * @return
+	 */
+	public boolean getDiscontinuityFlag() {
+		return discontinuity;
+	}
+	
+}
@@ -0,0 +1,61 @@
+package uk.co.la1tv.dvrBridgeService.m3u8Parser;
+
+/**
+ * Represents a stream entry in a master playlist.
+ */
+public class M3u8StreamInfo {
+	
+	private final String uri;
+	private final int bandwidth;
+	private final String codecs;
+	private final int resolutionWidth;
+	private final int resolutionHeight;
+	
+	/**
+	 * @param uri The uri of the playlist for this stream.
+	 * @param bandwidth The bandwidth in bits per second.
+	 * @param codecs The codecs string, or null if there wasn't one.
+	 * @param resolutionWidth The width, or -1 if there was no resolution.
+	 * @param resolutionHeight The height, or -1 if there was no resolution.
+	 */
+	public M3u8StreamInfo(String uri, int bandwidth, String codecs, int resolutionWidth, int resolutionHeight) {
+		this.uri = uri;
+		this.bandwidth = bandwidth;
+		this.codecs = codecs;
+		this.resolutionWidth = resolutionWidth;
+		this.resolutionHeight = resolutionHeight;
+	}
+	
+	/**
+	 * Get the uri of the playlist for this stream. This may be relative to the master playlist url.
+	 * @return
+	 */
+	public String getUri() {
+		return uri;
+	}
+	
+	public int getBandwidth() {
+		return bandwidth;
+	}
+	
+	/**
+	 * Get the codecs string, or null if the playlist did not contain one.
+	 * @return
+	 */
+	public String getCodecs() {
+		return codecs;
+	}
+	
+	public boolean hasResolution() {
+		return resolutionWidth >= 0 && resolutionHeight >= 0;
+	}
+	
+	public int getResolutionWidth() {
+		return resolutionWidth;
+	}
+	
+	public int getResolutionHeight() {
+		return resolutionHeight;
+	}
+	
+}
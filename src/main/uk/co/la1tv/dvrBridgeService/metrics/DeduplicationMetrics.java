@@ -0,0 +1,32 @@
+package uk.co.la1tv.dvrBridgeService.metrics;
+
+import java.util.ArrayList;
+import java.util.Collection;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+import uk.co.la1tv.dvrBridgeService.hlsRecorder.SegmentContentStore;
+
+/**
+ * Exposes how much disk space is being saved by segments with the same content sharing files
+ * on the actuator metrics endpoint.
+ */
+@Component
+public class DeduplicationMetrics implements PublicMetrics {
+
+	@Autowired
+	private SegmentContentStore contentStore;
+	
+	@Override
+	public Collection<Metric<?>> metrics() {
+		Collection<Metric<?>> metrics = new ArrayList<>();
+		metrics.add(new Metric<Integer>("deduplication.files", contentStore.getNumFiles()));
+		metrics.add(new Metric<Long>("deduplication.bytesSaved", contentStore.getNumBytesSaved()));
+		metrics.add(new Metric<Long>("deduplication.totalBytesSaved", contentStore.getTotalNumBytesSaved()));
+		return metrics;
+	}
+
+}
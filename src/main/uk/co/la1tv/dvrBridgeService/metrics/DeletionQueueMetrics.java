@@ -0,0 +1,33 @@
+package uk.co.la1tv.dvrBridgeService.metrics;
+
+import java.util.ArrayList;
+import java.util.Collection;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+import uk.co.la1tv.dvrBridgeService.hlsRecorder.SegmentDeletionQueue;
+
+/**
+ * Exposes the backlog of segment files waiting to be deleted on the actuator metrics endpoint.
+ */
+@Component
+public class DeletionQueueMetrics implements PublicMetrics {
+
+	@Autowired
+	private SegmentDeletionQueue deletionQueue;
+	
+	@Override
+	public Collection<Metric<?>> metrics() {
+		Collection<Metric<?>> metrics = new ArrayList<>();
+		metrics.add(new Metric<Integer>("deletionQueue.files", deletionQueue.getNumQueuedFiles()));
+		metrics.add(new Metric<Long>("deletionQueue.bytes", deletionQueue.getNumQueuedBytes()));
+		metrics.add(new Metric<Long>("deletionQueue.deleted", deletionQueue.getNumDeletedFiles()));
+		metrics.add(new Metric<Long>("deletionQueue.failed", deletionQueue.getNumFailedDeletions()));
+		metrics.add(new Metric<Long>("deletionQueue.pauseTime", deletionQueue.getTotalPauseTime()));
+		return metrics;
+	}
+
+}
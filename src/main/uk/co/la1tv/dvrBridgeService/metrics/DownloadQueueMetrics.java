@@ -0,0 +1,34 @@
+package uk.co.la1tv.dvrBridgeService.metrics;
+
+import java.util.ArrayList;
+import java.util.Collection;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+import uk.co.la1tv.dvrBridgeService.hlsRecorder.DownloadManager;
+
+/**
+ * Exposes the segment download queue on the actuator metrics endpoint.
+ */
+@Component
+public class DownloadQueueMetrics implements PublicMetrics {
+
+	@Autowired
+	private DownloadManager downloadManager;
+	
+	@Override
+	public Collection<Metric<?>> metrics() {
+		Collection<Metric<?>> metrics = new ArrayList<>();
+		metrics.add(new Metric<Integer>("downloadQueue.queued", downloadManager.getNumQueuedDownloads()));
+		metrics.add(new Metric<Integer>("downloadQueue.active", downloadManager.getNumActiveDownloads()));
+		metrics.add(new Metric<Long>("downloadQueue.waitTime.last", downloadManager.getLastQueueWaitTime()));
+		metrics.add(new Metric<Long>("downloadQueue.waitTime.average", downloadManager.getAverageQueueWaitTime()));
+		metrics.add(new Metric<Long>("downloadQueue.hedgedRequests", downloadManager.getNumHedgedRequests()));
+		metrics.add(new Metric<Long>("downloadQueue.hedgedRequestWins", downloadManager.getNumHedgedRequestWins()));
+		return metrics;
+	}
+
+}
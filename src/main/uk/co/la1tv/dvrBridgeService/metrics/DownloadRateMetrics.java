@@ -0,0 +1,36 @@
+package uk.co.la1tv.dvrBridgeService.metrics;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+import uk.co.la1tv.dvrBridgeService.hlsRecorder.DownloadManager;
+
+/**
+ * Exposes the segment download rates and how often downloads are being throttled
+ * on the actuator metrics endpoint.
+ */
+@Component
+public class DownloadRateMetrics implements PublicMetrics {
+
+	@Autowired
+	private DownloadManager downloadManager;
+	
+	@Override
+	public Collection<Metric<?>> metrics() {
+		Collection<Metric<?>> metrics = new ArrayList<>();
+		metrics.add(new Metric<Long>("downloadRate.current", downloadManager.getCurrentDownloadRate()));
+		for (Map.Entry<String, Long> entry : downloadManager.getCurrentDownloadRatePerHost().entrySet()) {
+			metrics.add(new Metric<Long>("downloadRate.host."+entry.getKey(), entry.getValue()));
+		}
+		metrics.add(new Metric<Long>("downloadRate.throttles", downloadManager.getNumThrottles()));
+		metrics.add(new Metric<Long>("downloadRate.throttleTime", downloadManager.getTotalThrottleTime()));
+		return metrics;
+	}
+
+}
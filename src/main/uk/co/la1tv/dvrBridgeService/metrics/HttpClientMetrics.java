@@ -0,0 +1,41 @@
+package uk.co.la1tv.dvrBridgeService.metrics;
+
+import java.util.ArrayList;
+import java.util.Collection;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+import uk.co.la1tv.dvrBridgeService.http.SharedHttpClient;
+
+/**
+ * Exposes the http connection pool usage on the actuator metrics endpoint.
+ */
+@Component
+public class HttpClientMetrics implements PublicMetrics {
+
+	@Autowired
+	private SharedHttpClient sharedHttpClient;
+	
+	@Override
+	public Collection<Metric<?>> metrics() {
+		Collection<Metric<?>> metrics = new ArrayList<>();
+		metrics.add(new Metric<Integer>("httpPool.hosts", sharedHttpClient.getNumHosts()));
+		metrics.add(new Metric<Integer>("httpPool.maxConnectionsPerHost", sharedHttpClient.getMaxConnectionsPerHost()));
+		metrics.add(new Metric<Integer>("httpPool.connections.active", sharedHttpClient.getNumActiveConnections()));
+		metrics.add(new Metric<Integer>("httpPool.connections.idle", sharedHttpClient.getNumIdleConnections()));
+		metrics.add(new Metric<Integer>("httpPool.saturatedHosts", sharedHttpClient.getNumSaturatedHosts()));
+		metrics.add(new Metric<Integer>("httpPool.queuedRequests", sharedHttpClient.getNumQueuedRequests()));
+		metrics.add(new Metric<Long>("httpPool.dnsCache.hits", sharedHttpClient.getDnsCacheHitCount()));
+		metrics.add(new Metric<Long>("httpPool.dnsCache.misses", sharedHttpClient.getDnsCacheMissCount()));
+		metrics.add(new Metric<Long>("httpPool.buffers.allocations", sharedHttpClient.getNumBufferAllocations()));
+		metrics.add(new Metric<Long>("httpPool.buffers.pooled", sharedHttpClient.getNumPooledBuffers()));
+		metrics.add(new Metric<Long>("httpPool.buffers.pooledBytes", sharedHttpClient.getNumPooledBufferBytes()));
+		metrics.add(new Metric<Long>("httpPool.buffers.inUse", sharedHttpClient.getNumBuffersInUse()));
+		metrics.add(new Metric<Long>("httpPool.buffers.leaks", sharedHttpClient.getNumBufferLeaks()));
+		return metrics;
+	}
+
+}
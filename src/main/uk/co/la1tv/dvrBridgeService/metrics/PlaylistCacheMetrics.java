@@ -0,0 +1,32 @@
+package uk.co.la1tv.dvrBridgeService.metrics;
+
+import java.util.ArrayList;
+import java.util.Collection;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+import uk.co.la1tv.dvrBridgeService.helpers.M3u8ParserHelper;
+
+/**
+ * Exposes the playlist cache counters on the actuator metrics endpoint.
+ */
+@Component
+public class PlaylistCacheMetrics implements PublicMetrics {
+
+	@Autowired
+	private M3u8ParserHelper m3u8ParserHelper;
+	
+	@Override
+	public Collection<Metric<?>> metrics() {
+		Collection<Metric<?>> metrics = new ArrayList<>();
+		metrics.add(new Metric<Integer>("playlistCache.entries", m3u8ParserHelper.getCacheSize()));
+		metrics.add(new Metric<Long>("playlistCache.hits", m3u8ParserHelper.getCacheHitCount()));
+		metrics.add(new Metric<Long>("playlistCache.notModified", m3u8ParserHelper.getNotModifiedCount()));
+		metrics.add(new Metric<Long>("playlistCache.misses", m3u8ParserHelper.getCacheMissCount()));
+		return metrics;
+	}
+
+}
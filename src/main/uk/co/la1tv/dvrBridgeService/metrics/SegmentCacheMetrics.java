@@ -0,0 +1,36 @@
+package uk.co.la1tv.dvrBridgeService.metrics;
+
+import java.util.ArrayList;
+import java.util.Collection;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+import uk.co.la1tv.dvrBridgeService.servableFiles.SegmentCache;
+
+/**
+ * Exposes how often files are being served from the in memory segment cache on the actuator metrics endpoint.
+ */
+@Component
+public class SegmentCacheMetrics implements PublicMetrics {
+
+	@Autowired
+	private SegmentCache segmentCache;
+	
+	@Override
+	public Collection<Metric<?>> metrics() {
+		Collection<Metric<?>> metrics = new ArrayList<>();
+		long numHits = segmentCache.getNumHits();
+		long numRequests = numHits + segmentCache.getNumMisses();
+		metrics.add(new Metric<Long>("segmentCache.size", segmentCache.getSize()));
+		metrics.add(new Metric<Integer>("segmentCache.entries", segmentCache.getNumEntries()));
+		metrics.add(new Metric<Long>("segmentCache.hits", numHits));
+		metrics.add(new Metric<Long>("segmentCache.misses", segmentCache.getNumMisses()));
+		metrics.add(new Metric<Double>("segmentCache.hitRate", numRequests == 0 ? 0 : (double) numHits / numRequests));
+		metrics.add(new Metric<Long>("segmentCache.evictions", segmentCache.getNumEvictions()));
+		return metrics;
+	}
+
+}
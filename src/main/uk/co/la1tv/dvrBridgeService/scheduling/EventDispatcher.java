@@ -0,0 +1,54 @@
+package uk.co.la1tv.dvrBridgeService.scheduling;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+/**
+ * Runs callbacks away from the thread that triggered them, on a fixed size pool of threads.
+ * Callbacks are added to an OrderedEventQueue, and the callbacks in a queue are run one
+ * at a time in the order they were added.
+ */
+@Service
+public class EventDispatcher {
+	
+	@Value("${app.eventDispatcherThreads}")
+	private int numThreads;
+	
+	private ExecutorService executor = null;
+	
+	@PostConstruct
+	private void onPostConstruct() {
+		final AtomicInteger count = new AtomicInteger(0);
+		executor = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "event-dispatcher-"+count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+	
+	@PreDestroy
+	private void onPreDestroy() {
+		executor.shutdownNow();
+	}
+	
+	/**
+	 * Create a new queue. Callbacks in the queue will be run in order, and never at the same time.
+	 * Callbacks in different queues can run at the same time.
+	 * @return
+	 */
+	public OrderedEventQueue createQueue() {
+		return new OrderedEventQueue(executor);
+	}
+	
+}
@@ -0,0 +1,98 @@
+package uk.co.la1tv.dvrBridgeService.scheduling;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A queue of callbacks which are run in order, one at a time, on a shared executor.
+ * Created from the EventDispatcher.
+ */
+public class OrderedEventQueue {
+	
+	private static Logger logger = Logger.getLogger(OrderedEventQueue.class);
+	
+	// the maximum number of events that are run before giving the thread back to the executor
+	private static final int MAX_EVENTS_PER_RUN = 20;
+	
+	private final Executor executor;
+	private final ArrayDeque<Event> events = new ArrayDeque<>();
+	// true if there is a task submitted to the executor that is processing this queue
+	private boolean processing = false;
+	private final Processor processor = new Processor();
+	
+	OrderedEventQueue(Executor executor) {
+		this.executor = executor;
+	}
+	
+	/**
+	 * Add an event to the end of the queue.
+	 * @param event
+	 */
+	public void execute(Runnable event) {
+		add(new Event(null, event));
+	}
+	
+	/**
+	 * Add an event to the end of the queue. If the event at the end of the queue has the same
+	 * key and hasn't started yet it is replaced with this one, so consecutive events with the same
+	 * key are coalesced and only the latest one runs.
+	 * @param key
+	 * @param event
+	 */
+	public void executeLatest(Object key, Runnable event) {
+		add(new Event(key, event));
+	}
+	
+	private void add(Event event) {
+		synchronized(events) {
+			Event last = events.peekLast();
+			if (event.key != null && last != null && event.key.equals(last.key)) {
+				events.pollLast();
+			}
+			events.addLast(event);
+			if (processing) {
+				return;
+			}
+			processing = true;
+		}
+		executor.execute(processor);
+	}
+	
+	private class Processor implements Runnable {
+		
+		@Override
+		public void run() {
+			for (int i=0; i<MAX_EVENTS_PER_RUN; i++) {
+				Event event;
+				synchronized(events) {
+					event = events.pollFirst();
+					if (event == null) {
+						processing = false;
+						return;
+					}
+				}
+				try {
+					event.runnable.run();
+				}
+				catch(Exception e) {
+					e.printStackTrace();
+					logger.error("Error in event callback.");
+				}
+			}
+			// there may be more events but let other queues have a go first
+			executor.execute(this);
+		}
+	}
+	
+	private static class Event {
+		private final Object key;
+		private final Runnable runnable;
+		
+		public Event(Object key, Runnable runnable) {
+			this.key = key;
+			this.runnable = runnable;
+		}
+	}
+}
@@ -0,0 +1,48 @@
+package uk.co.la1tv.dvrBridgeService.scheduling;
+
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * A handle to a task that has been scheduled with the SharedScheduler.
+ */
+public class ScheduledTask {
+	
+	private final Object lock = new Object();
+	private boolean cancelled = false;
+	// the future for the next time the task is due to run
+	private ScheduledFuture<?> future = null;
+	
+	/**
+	 * Cancel the task. If the task is currently running it will finish but won't run again.
+	 */
+	public void cancel() {
+		synchronized(lock) {
+			cancelled = true;
+			if (future != null) {
+				future.cancel(false);
+				future = null;
+			}
+		}
+	}
+	
+	public boolean isCancelled() {
+		synchronized(lock) {
+			return cancelled;
+		}
+	}
+	
+	/**
+	 * Set the future for the next run. Returns false if the task has been cancelled.
+	 */
+	boolean setFuture(ScheduledFuture<?> future) {
+		synchronized(lock) {
+			if (cancelled) {
+				future.cancel(false);
+				return false;
+			}
+			this.future = future;
+			return true;
+		}
+	}
+	
+}
@@ -0,0 +1,123 @@
+package uk.co.la1tv.dvrBridgeService.scheduling;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+/**
+ * Runs all of the periodic and delayed work in the application (e.g. playlist polling,
+ * inactivity checks and cleanup) on a fixed number of threads, so the number of threads
+ * does not grow with the number of captures.
+ * 
+ * One thread keeps track of when tasks are due, and the tasks themselves are run on a
+ * fixed size pool of worker threads, so that one task does not delay other tasks from being started.
+ * Tasks should be short and must not wait on anything slow (e.g. a request, which should be made
+ * asynchronously), because there are only a few workers and they are shared by every capture.
+ */
+@Service
+public class SharedScheduler {
+	
+	private static Logger logger = Logger.getLogger(SharedScheduler.class);
+	
+	@Value("${app.schedulerThreads}")
+	private int numWorkerThreads;
+	
+	private ScheduledThreadPoolExecutor timer = null;
+	private ExecutorService workers = null;
+	
+	@PostConstruct
+	private void onPostConstruct() {
+		timer = new ScheduledThreadPoolExecutor(1, new NamedThreadFactory("scheduler"));
+		// so that cancelled tasks don't build up in the queue
+		timer.setRemoveOnCancelPolicy(true);
+		workers = Executors.newFixedThreadPool(numWorkerThreads, new NamedThreadFactory("scheduler-worker"));
+	}
+	
+	@PreDestroy
+	private void onPreDestroy() {
+		timer.shutdownNow();
+		workers.shutdownNow();
+	}
+	
+	/**
+	 * Run the task once after the delay.
+	 * @param task
+	 * @param delay The delay in milliseconds.
+	 * @return A handle which can be used to cancel the task.
+	 */
+	public ScheduledTask schedule(Runnable task, long delay) {
+		ScheduledTask scheduledTask = new ScheduledTask();
+		scheduleRun(scheduledTask, task, delay, -1);
+		return scheduledTask;
+	}
+	
+	/**
+	 * Run the task repeatedly until it is cancelled.
+	 * The period is the time between one run finishing and the next one starting,
+	 * so runs never overlap.
+	 * @param task
+	 * @param initialDelay The delay in milliseconds before the first run.
+	 * @param period The delay in milliseconds between runs.
+	 * @return A handle which can be used to cancel the task.
+	 */
+	public ScheduledTask scheduleRepeating(Runnable task, long initialDelay, long period) {
+		ScheduledTask scheduledTask = new ScheduledTask();
+		scheduleRun(scheduledTask, task, initialDelay, period);
+		return scheduledTask;
+	}
+	
+	private void scheduleRun(final ScheduledTask scheduledTask, final Runnable task, long delay, final long period) {
+		scheduledTask.setFuture(timer.schedule(new Runnable() {
+			@Override
+			public void run() {
+				// hand over to a worker so the timer thread is never blocked
+				workers.execute(new Runnable() {
+					@Override
+					public void run() {
+						if (scheduledTask.isCancelled()) {
+							return;
+						}
+						try {
+							task.run();
+						}
+						catch(Exception e) {
+							e.printStackTrace();
+							logger.error("Error in scheduled task.");
+						}
+						if (period >= 0 && !scheduledTask.isCancelled()) {
+							scheduleRun(scheduledTask, task, period, period);
+						}
+					}
+				});
+			}
+		}, delay, TimeUnit.MILLISECONDS));
+	}
+	
+	private static class NamedThreadFactory implements ThreadFactory {
+		
+		private final String name;
+		private final AtomicInteger count = new AtomicInteger(0);
+		
+		public NamedThreadFactory(String name) {
+			this.name = name;
+		}
+		
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, name+"-"+count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+	
+}
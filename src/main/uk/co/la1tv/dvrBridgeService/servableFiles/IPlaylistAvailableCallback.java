@@ -0,0 +1,11 @@
+package uk.co.la1tv.dvrBridgeService.servableFiles;
+
+public interface IPlaylistAvailableCallback {
+	
+	/**
+	 * Called when a playlist that was being waited for contains the requested segment, or will
+	 * never contain it.
+	 * @param content The content of the playlist, or null if the playlist has been removed.
+	 */
+	void onAvailable(PlaylistContentStore.PlaylistContent content);
+}
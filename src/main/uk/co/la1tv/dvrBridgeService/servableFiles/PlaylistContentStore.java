@@ -0,0 +1,210 @@
+package uk.co.la1tv.dvrBridgeService.servableFiles;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+import org.springframework.stereotype.Service;
+
+import uk.co.la1tv.dvrBridgeService.hlsRecorder.PlaylistSnapshot;
+
+/**
+ * Holds the current content of the generated playlist files in memory so that they can be
+ * served without reading them from disk.
+ * 
+ * Requests can also wait for a playlist to contain a segment (an LL-HLS blocking playlist reload).
+ */
+@Service
+public class PlaylistContentStore {
+	
+	// key is the file name
+	private final ConcurrentHashMap<String, PlaylistContent> playlists = new ConcurrentHashMap<>();
+	// the callbacks waiting for a segment to be added to a playlist, keyed by file name
+	private final HashMap<String, ArrayList<Waiter>> waiters = new HashMap<>();
+	private final Object lock = new Object();
+	
+	/**
+	 * Set the content of a playlist file.
+	 * @param name The name of the file.
+	 * @param content
+	 */
+	public void put(String name, String content) {
+		byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+		CRC32 crc = new CRC32();
+		crc.update(bytes);
+		String etag = "\""+Long.toHexString(crc.getValue())+"-"+Integer.toHexString(bytes.length)+"\"";
+		put(name, new PlaylistContent(ByteBuffer.wrap(bytes).asReadOnlyBuffer(), etag, null));
+	}
+	
+	/**
+	 * Set the content of a generated media playlist.
+	 * @param name The name of the file.
+	 * @param snapshot
+	 */
+	public void put(String name, PlaylistSnapshot snapshot) {
+		// the playlist is only ever appended to until the first segment changes, so the media
+		// sequence and length identify the content
+		String etag = "\""+Integer.toHexString(snapshot.getMediaSequence())+"-"+Integer.toHexString(snapshot.getLength())+"\"";
+		put(name, new PlaylistContent(snapshot.asByteBuffer(), etag, snapshot));
+	}
+	
+	private void put(String name, PlaylistContent content) {
+		ArrayList<Waiter> readyWaiters = new ArrayList<>();
+		synchronized(lock) {
+			playlists.put(name, content);
+			ArrayList<Waiter> playlistWaiters = waiters.get(name);
+			if (playlistWaiters != null) {
+				Iterator<Waiter> it = playlistWaiters.iterator();
+				while(it.hasNext()) {
+					Waiter waiter = it.next();
+					if (content.contains(waiter.mediaSequenceNumber)) {
+						readyWaiters.add(waiter);
+						it.remove();
+					}
+				}
+				if (playlistWaiters.isEmpty()) {
+					waiters.remove(name);
+				}
+			}
+		}
+		for (Waiter waiter : readyWaiters) {
+			waiter.callback.onAvailable(content);
+		}
+	}
+	
+	/**
+	 * Remove a playlist file. Should be called when the file is deleted.
+	 * @param name The name of the file.
+	 */
+	public void remove(String name) {
+		ArrayList<Waiter> playlistWaiters;
+		synchronized(lock) {
+			playlists.remove(name);
+			playlistWaiters = waiters.remove(name);
+		}
+		if (playlistWaiters != null) {
+			for (Waiter waiter : playlistWaiters) {
+				waiter.callback.onAvailable(null);
+			}
+		}
+	}
+	
+	/**
+	 * Get the current content of a playlist file.
+	 * @param name The name of the file.
+	 * @return The content, or null if there is no playlist with this name.
+	 */
+	public PlaylistContent get(String name) {
+		return playlists.get(name);
+	}
+	
+	/**
+	 * Wait for a playlist to contain the segment with the media sequence number.
+	 * If it already does, or never will, the callback is called straight away on this thread.
+	 * Otherwise it is called from the thread that updates the playlist.
+	 * @param name The name of the file.
+	 * @param mediaSequenceNumber
+	 * @param callback
+	 */
+	public void waitFor(String name, long mediaSequenceNumber, IPlaylistAvailableCallback callback) {
+		PlaylistContent content;
+		synchronized(lock) {
+			content = playlists.get(name);
+			if (content != null && !content.contains(mediaSequenceNumber)) {
+				ArrayList<Waiter> playlistWaiters = waiters.get(name);
+				if (playlistWaiters == null) {
+					playlistWaiters = new ArrayList<>();
+					waiters.put(name, playlistWaiters);
+				}
+				playlistWaiters.add(new Waiter(mediaSequenceNumber, callback));
+				return;
+			}
+		}
+		callback.onAvailable(content);
+	}
+	
+	/**
+	 * Stop waiting. The callback will not be called after this returns true.
+	 * @param name The name of the file.
+	 * @param callback
+	 * @return True if the callback was still waiting.
+	 */
+	public boolean cancelWait(String name, IPlaylistAvailableCallback callback) {
+		synchronized(lock) {
+			ArrayList<Waiter> playlistWaiters = waiters.get(name);
+			if (playlistWaiters == null) {
+				return false;
+			}
+			Iterator<Waiter> it = playlistWaiters.iterator();
+			while(it.hasNext()) {
+				if (it.next().callback == callback) {
+					it.remove();
+					if (playlistWaiters.isEmpty()) {
+						waiters.remove(name);
+					}
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+	
+	private static class Waiter {
+		
+		private final long mediaSequenceNumber;
+		private final IPlaylistAvailableCallback callback;
+		
+		public Waiter(long mediaSequenceNumber, IPlaylistAvailableCallback callback) {
+			this.mediaSequenceNumber = mediaSequenceNumber;
+			this.callback = callback;
+		}
+	}
+	
+	public static class PlaylistContent {
+		
+		private final ByteBuffer content;
+		private final String etag;
+		private final PlaylistSnapshot snapshot;
+		
+		private PlaylistContent(ByteBuffer content, String etag, PlaylistSnapshot snapshot) {
+			this.content = content;
+			this.etag = etag;
+			this.snapshot = snapshot;
+		}
+		
+		/**
+		 * @return A read only buffer containing the playlist.
+		 */
+		public ByteBuffer getContent() {
+			return content.duplicate();
+		}
+		
+		/**
+		 * @return An etag which changes whenever the content changes.
+		 */
+		public String getEtag() {
+			return etag;
+		}
+		
+		/**
+		 * @return The generated media playlist, or null if this is a different kind of playlist.
+		 */
+		public PlaylistSnapshot getSnapshot() {
+			return snapshot;
+		}
+		
+		/**
+		 * Determine if the playlist contains the segment with the media sequence number, or will
+		 * never contain it.
+		 * @param mediaSequenceNumber
+		 * @return
+		 */
+		private boolean contains(long mediaSequenceNumber) {
+			return snapshot == null || snapshot.isEnded() || mediaSequenceNumber < snapshot.getNextMediaSequence();
+		}
+	}
+}
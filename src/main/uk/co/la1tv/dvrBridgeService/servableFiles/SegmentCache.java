@@ -0,0 +1,262 @@
+package uk.co.la1tv.dvrBridgeService.servableFiles;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import uk.co.la1tv.dvrBridgeService.http.SharedHttpClient;
+
+/**
+ * Holds the content of recently downloaded segment files in memory (outside of the heap),
+ * so that the segments near the live edge, which most viewers are requesting, can be
+ * served without reading from disk.
+ *
+ * The cache is only filled when app.serveFiles is enabled, because nothing else reads from it.
+ * It is filled as segments are downloaded, and when it is full the least recently used segments
+ * are evicted. The buffers are taken from the http client's buffer pool and are given back once
+ * they have been evicted and no requests are still sending them, so in the steady state evicting
+ * one segment provides the buffer for the next.
+ */
+@Service
+public class SegmentCache {
+	
+	// buffer sizes are rounded up to a multiple of this so that segments of a similar size can reuse the same buffers
+	private static final int SIZE_INCREMENT = 64*1024;
+	
+	@Value("${app.segmentCacheSize}")
+	private long maxSize;
+	
+	@Value("${app.serveFiles}")
+	private boolean serveFiles;
+	
+	@Autowired
+	private SharedHttpClient sharedHttpClient;
+	
+	private final Object lock = new Object();
+	// key is the file name. In access order so the first entry is the least recently used
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+	// the size of the cached entries plus the space reserved for segments that are being downloaded
+	private long size = 0;
+	private final AtomicLong numHits = new AtomicLong(0);
+	private final AtomicLong numMisses = new AtomicLong(0);
+	private final AtomicLong numEvictions = new AtomicLong(0);
+	
+	/**
+	 * Reserve space in the cache for a file that is about to be downloaded.
+	 * Space is made by evicting the least recently used files.
+	 * @param fileSize The size of the file in bytes.
+	 * @return The fill that the content should be written to, or null if the file can't be cached.
+	 */
+	public Fill startFill(long fileSize) {
+		if (!serveFiles || fileSize <= 0 || fileSize > maxSize || fileSize > Integer.MAX_VALUE - SIZE_INCREMENT) {
+			return null;
+		}
+		int capacity = (int) (((fileSize + SIZE_INCREMENT - 1) / SIZE_INCREMENT) * SIZE_INCREMENT);
+		ArrayList<Entry> evictedEntries = new ArrayList<>();
+		boolean reserved = false;
+		synchronized(lock) {
+			Iterator<Entry> it = entries.values().iterator();
+			while(size + capacity > maxSize && it.hasNext()) {
+				Entry entry = it.next();
+				size -= entry.buffer.capacity();
+				it.remove();
+				evictedEntries.add(entry);
+				numEvictions.incrementAndGet();
+			}
+			// otherwise the rest of the space is reserved by other downloads
+			if (size + capacity <= maxSize) {
+				size += capacity;
+				reserved = true;
+			}
+		}
+		// released first so that an evicted buffer can be reused for this file
+		for (Entry entry : evictedEntries) {
+			entry.release();
+		}
+		if (!reserved) {
+			return null;
+		}
+		ByteBuffer buffer = sharedHttpClient.getBufferPool().acquire(capacity, true);
+		buffer.clear();
+		buffer.limit((int) fileSize);
+		return new Fill(buffer);
+	}
+	
+	/**
+	 * Get a file if it is in the cache.
+	 * Entry.release() must be called when the content is no longer being used.
+	 * @param name The name of the file.
+	 * @return The entry, or null if it isn't cached.
+	 */
+	public Entry get(String name) {
+		Entry entry = null;
+		synchronized(lock) {
+			entry = entries.get(name);
+			if (entry != null) {
+				entry.numReferences++;
+			}
+		}
+		if (entry == null) {
+			numMisses.incrementAndGet();
+			return null;
+		}
+		numHits.incrementAndGet();
+		return entry;
+	}
+	
+	/**
+	 * Remove a file from the cache. Should be called when the file is deleted.
+	 * @param name The name of the file.
+	 */
+	public void remove(String name) {
+		Entry entry;
+		synchronized(lock) {
+			entry = entries.remove(name);
+			if (entry != null) {
+				size -= entry.buffer.capacity();
+			}
+		}
+		if (entry != null) {
+			entry.release();
+		}
+	}
+	
+	public long getSize() {
+		synchronized(lock) {
+			return size;
+		}
+	}
+	
+	public int getNumEntries() {
+		synchronized(lock) {
+			return entries.size();
+		}
+	}
+	
+	public long getNumHits() {
+		return numHits.get();
+	}
+	
+	public long getNumMisses() {
+		return numMisses.get();
+	}
+	
+	public long getNumEvictions() {
+		return numEvictions.get();
+	}
+	
+	/**
+	 * A file in the cache.
+	 * The buffer is given back to the pool once the entry has been removed from the cache and
+	 * everything that got it from get() has released it.
+	 */
+	public class Entry {
+		
+		private final ByteBuffer buffer;
+		// starts at one for the reference held by the cache
+		private int numReferences = 1;
+		
+		private Entry(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+		
+		/**
+		 * Get the content of the file. This must not be used after release() has been called.
+		 * @return A read only buffer.
+		 */
+		public ByteBuffer getContent() {
+			return buffer.asReadOnlyBuffer();
+		}
+		
+		/**
+		 * Release the reference from get().
+		 */
+		public void release() {
+			synchronized(lock) {
+				if (--numReferences > 0) {
+					return;
+				}
+			}
+			sharedHttpClient.getBufferPool().release(buffer);
+		}
+	}
+	
+	/**
+	 * Space in the cache that is being filled with a file as it is downloaded.
+	 * Either complete() or abort() must be called once the download has finished.
+	 */
+	public class Fill {
+		
+		private final ByteBuffer buffer;
+		private boolean finished = false;
+		
+		private Fill(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+		
+		/**
+		 * Add the next part of the file.
+		 * @param content This is read from the current position to the limit.
+		 * @return false if the content is bigger than the space reserved, in which case the fill is aborted.
+		 */
+		public boolean write(ByteBuffer content) {
+			if (finished) {
+				return false;
+			}
+			if (content.remaining() > buffer.remaining()) {
+				abort();
+				return false;
+			}
+			buffer.put(content);
+			return true;
+		}
+		
+		/**
+		 * Add the file to the cache if all of it has been written.
+		 * @param name The name of the file.
+		 */
+		public void complete(String name) {
+			if (finished) {
+				return;
+			}
+			if (buffer.hasRemaining()) {
+				// the file was smaller than expected
+				abort();
+				return;
+			}
+			finished = true;
+			buffer.flip();
+			Entry previous;
+			synchronized(lock) {
+				previous = entries.put(name, new Entry(buffer));
+				if (previous != null) {
+					size -= previous.buffer.capacity();
+				}
+			}
+			if (previous != null) {
+				previous.release();
+			}
+		}
+		
+		/**
+		 * Give up the space that was reserved.
+		 */
+		public void abort() {
+			if (finished) {
+				return;
+			}
+			finished = true;
+			synchronized(lock) {
+				size -= buffer.capacity();
+			}
+			sharedHttpClient.getBufferPool().release(buffer);
+		}
+	}
+	
+}
@@ -14,6 +14,7 @@ import org.springframework.context.ApplicationContext;
 import org.springframework.stereotype.Service;
 
 import uk.co.la1tv.dvrBridgeService.helpers.FileHelper;
+import uk.co.la1tv.dvrBridgeService.hlsRecorder.SegmentFileCommitter;
 
 /**
  * Responsible for generating unique File objects for chunks to be downloaded to.
@@ -58,15 +59,28 @@ public class ServableFileGenerator {
 			throw(new RuntimeException("Cannot write to web directory."));
 		}
 	
-		// empty the folder of all .ts and .m3u8 files
-		FileHelper.purgeDirectory(webDirectory, new String[]{"ts", "m3u8"});
+		// empty the folder of all .ts and .m3u8 files, and any partially downloaded ones
+		FileHelper.purgeDirectory(webDirectory, new String[]{"ts", "m3u8", SegmentFileCommitter.TEMP_FILE_EXTENSION});
+	}
+	
+	/**
+	 * Get the directory that servable files are created in.
+	 * @return
+	 */
+	public File getWebDirectory() {
+		return webDirectory;
 	}
 	
 	public ServableFile generateServableFile(String extension) {
 		
 		ServableFile file = null;
 		do {
-			String name = bytesToHex(digest.digest((System.currentTimeMillis()+":"+random.nextInt()).getBytes()));
+			byte[] hash = null;
+			synchronized(digest) {
+				// MessageDigest is not thread safe and this can be called from several threads
+				hash = digest.digest((System.currentTimeMillis()+":"+random.nextInt()).getBytes());
+			}
+			String name = bytesToHex(hash);
 			if (extension != null) {
 				name += "."+extension;
 			}
@@ -29,21 +29,29 @@ public class MasterStreamManager {
 	 * playlist and creates either a VariantSiteStream or SiteStream accordingly.
 	 * Returns null if there was an error.
 	 * @param id
-	 * @param remoteHlsPlaylistUrl
+	 * @param remoteHlsPlaylistUrls Equivalent urls for the remote playlist, e.g. on a primary and backup origin.
+	 * 		The first is the primary one.
+	 * @param windowDuration The number of seconds of the stream that are kept, or 0 to keep all of it.
 	 * @return
 	 */
-	public ISiteStream createStream(final String id, URL remoteHlsPlaylistUrl) {
-		try {
-			if (m3u8ParserHelper.isVariantPlaylist(remoteHlsPlaylistUrl)) {
-				return variantStreamManager.createStream(id, remoteHlsPlaylistUrl);
+	public ISiteStream createStream(final String id, URL[] remoteHlsPlaylistUrls, int windowDuration) {
+		for (URL remoteHlsPlaylistUrl : remoteHlsPlaylistUrls) {
+			boolean isVariantPlaylist;
+			try {
+				isVariantPlaylist = m3u8ParserHelper.isVariantPlaylist(remoteHlsPlaylistUrl);
+			} catch (PlaylistRequestException e) {
+				// try the next url
+				e.printStackTrace();
+				continue;
+			}
+			if (isVariantPlaylist) {
+				return variantStreamManager.createStream(id, remoteHlsPlaylistUrls, windowDuration);
 			}
 			else {
-				return streamManager.createStream(id, remoteHlsPlaylistUrl);
+				return streamManager.createStream(id, remoteHlsPlaylistUrls, windowDuration);
 			}
-		} catch (PlaylistRequestException e) {
-			e.printStackTrace();
-			return null;
 		}
+		return null;
 	}
 	
 	
@@ -0,0 +1,182 @@
+package uk.co.la1tv.dvrBridgeService.streamManager;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import javax.annotation.PostConstruct;
+
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Scope;
+import org.springframework.stereotype.Component;
+
+import uk.co.la1tv.dvrBridgeService.hlsRecorder.PlaylistSnapshot;
+import uk.co.la1tv.dvrBridgeService.hlsRecorder.SegmentFileCommitter;
+import uk.co.la1tv.dvrBridgeService.scheduling.SharedScheduler;
+
+/**
+ * Writes a generated playlist to its file in the web directory.
+ *
+ * Updates that arrive within the write delay of each other are combined into one write.
+ * In "replace" mode (the default) every write goes to a temporary file which is then moved into
+ * place, so the file is never seen half written.
+ *
+ * In "append" mode only the first write is done like that. After that, because the playlist is only
+ * ever appended to, just the new lines are written to the end of the live file. This is not atomic:
+ * the new lines can take more than one write, so a reader can see the file with a line that is only
+ * partly written, and has to cope with that (e.g. by ignoring an incomplete last line). The whole file
+ * is still written and moved into place if the first segment has changed (a sliding window capture),
+ * or the file is not the length that was last written.
+ */
+@Component
+@Scope("prototype")
+public class PlaylistFileWriter {
+	
+	private static Logger logger = Logger.getLogger(PlaylistFileWriter.class);
+	
+	@Autowired
+	private SharedScheduler scheduler;
+	
+	@Value("${app.playlistWriteMode}")
+	private String writeModeStr;
+	@Value("${app.playlistWriteDelay}")
+	private long writeDelay;
+	
+	private final File file;
+	private final Object lock = new Object();
+	private final Object writeLock = new Object();
+	private boolean appendMode;
+	// the latest content which has not been written yet
+	private PlaylistSnapshot pendingContent = null;
+	private boolean closed = false;
+	// the number of bytes which are currently in the file
+	private long writtenLength = 0;
+	// the media sequence number at the start of the content which is currently in the file
+	private int writtenMediaSequence = 0;
+	
+	public PlaylistFileWriter(File file) {
+		this.file = file;
+	}
+	
+	@PostConstruct
+	private void onPostConstruct() {
+		if (writeModeStr.equals("append")) {
+			appendMode = true;
+		}
+		else if (writeModeStr.equals("replace")) {
+			appendMode = false;
+		}
+		else {
+			throw(new RuntimeException("Invalid playlist write mode \""+writeModeStr+"\"."));
+		}
+	}
+	
+	/**
+	 * Write the new content of the playlist to the file.
+	 * This returns straight away and the file is written on a different thread.
+	 * @param content
+	 */
+	public void update(PlaylistSnapshot content) {
+		synchronized(lock) {
+			if (closed) {
+				return;
+			}
+			boolean writeScheduled = pendingContent != null;
+			pendingContent = content;
+			if (writeScheduled) {
+				// will be picked up by the write that is already scheduled
+				return;
+			}
+		}
+		scheduler.schedule(new Runnable() {
+			@Override
+			public void run() {
+				write();
+			}
+		}, writeDelay);
+	}
+	
+	/**
+	 * Stop writing to the file. Should be called before the file is deleted so that a pending
+	 * write does not create it again.
+	 */
+	public void close() {
+		synchronized(writeLock) {
+			synchronized(lock) {
+				closed = true;
+				pendingContent = null;
+			}
+		}
+	}
+	
+	private void write() {
+		synchronized(writeLock) {
+			PlaylistSnapshot content;
+			synchronized(lock) {
+				if (closed || pendingContent == null) {
+					return;
+				}
+				content = pendingContent;
+				pendingContent = null;
+			}
+			if (content.getLength() == writtenLength && content.getMediaSequence() == writtenMediaSequence) {
+				return;
+			}
+			try {
+				if (appendMode && writtenLength > 0 && content.getMediaSequence() == writtenMediaSequence && content.getLength() > writtenLength && file.length() == writtenLength) {
+					append(content);
+				}
+				else {
+					writeAtomically(file, content.asByteBuffer());
+				}
+				writtenLength = content.getLength();
+				writtenMediaSequence = content.getMediaSequence();
+			} catch (IOException e) {
+				e.printStackTrace();
+				logger.error("Error when trying to write generated playlist file.");
+				// make sure the whole file is written next time
+				writtenLength = -1;
+			}
+		}
+	}
+	
+	/**
+	 * Write the content after the part which is already in the file to the end of the file.
+	 * Readers can see the file part way through this.
+	 * @param content
+	 * @throws IOException
+	 */
+	private void append(PlaylistSnapshot content) throws IOException {
+		ByteBuffer buffer = content.asByteBuffer();
+		buffer.position((int) writtenLength);
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+			long position = writtenLength;
+			while (buffer.hasRemaining()) {
+				position += channel.write(buffer, position);
+			}
+		}
+	}
+	
+	/**
+	 * Replace the contents of a file by writing a temporary file and moving it into place, so that
+	 * the file is never seen half written.
+	 * @param file
+	 * @param content
+	 * @throws IOException
+	 */
+	public static void writeAtomically(File file, ByteBuffer content) throws IOException {
+		File tempFile = new File(file.getParentFile(), file.getName()+"."+SegmentFileCommitter.TEMP_FILE_EXTENSION);
+		try (FileChannel channel = FileChannel.open(tempFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			while (content.hasRemaining()) {
+				channel.write(content);
+			}
+		}
+		Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+	}
+}
@@ -1,13 +1,7 @@
 package uk.co.la1tv.dvrBridgeService.streamManager;
 
 import java.io.File;
-import java.io.IOException;
 import java.net.URL;
-import java.nio.file.Files;
-import java.nio.file.Paths;
-import java.nio.file.StandardOpenOption;
-import java.util.Timer;
-import java.util.TimerTask;
 
 import javax.annotation.PostConstruct;
 
@@ -23,6 +17,10 @@ import uk.co.la1tv.dvrBridgeService.hlsRecorder.HlsPlaylistCapture;
 import uk.co.la1tv.dvrBridgeService.hlsRecorder.HlsPlaylistCaptureState;
 import uk.co.la1tv.dvrBridgeService.hlsRecorder.ICaptureStateChangeListener;
 import uk.co.la1tv.dvrBridgeService.hlsRecorder.IPlaylistUpdatedListener;
+import uk.co.la1tv.dvrBridgeService.hlsRecorder.PlaylistSnapshot;
+import uk.co.la1tv.dvrBridgeService.scheduling.ScheduledTask;
+import uk.co.la1tv.dvrBridgeService.scheduling.SharedScheduler;
+import uk.co.la1tv.dvrBridgeService.servableFiles.PlaylistContentStore;
 import uk.co.la1tv.dvrBridgeService.servableFiles.ServableFile;
 import uk.co.la1tv.dvrBridgeService.servableFiles.ServableFileGenerator;
 
@@ -44,6 +42,12 @@ public class SiteStream implements ISiteStream {
 	@Autowired
 	private ServableFileGenerator fileGenerator;
 	
+	@Autowired
+	private SharedScheduler scheduler;
+	
+	@Autowired
+	private PlaylistContentStore playlistContentStore;
+	
 	@Value("${app.inactivityTimeLimit}")
 	// time (seconds) that registerActivity calls must be received in 
 	private int inactivityTimeLimit;
@@ -53,23 +57,28 @@ public class SiteStream implements ISiteStream {
 	// unique id for this stream provided by site. This may be the id of the parent variant stream,
 	// in which case there may be other playlists which belong to that variant playlist with the same id
 	private final String siteStreamId;
-	private final URL sourcePlaylistUrl;
+	// the first url is the primary one and any others are equivalent alternatives
+	private final URL[] sourcePlaylistUrls;
+	// the number of seconds of the stream that are kept, or 0 to keep all of it
+	private final int windowDuration;
 	private HlsPlaylist hlsPlaylist = null;
 	private HlsPlaylistCapture capture = null;
 	private ServableFile generatedPlaylistFile = null;
+	private PlaylistFileWriter playlistFileWriter = null;
 	private ISiteStreamCaptureRemovedListener captureRemovedListener = null;
 	private boolean requestedStop = false;
 	private long lastActivity = System.currentTimeMillis();
-	private Timer inactivityTimer = null;
+	private ScheduledTask inactivityCheckerTask = null;
 	
-	public SiteStream(String id, URL sourcePlaylistUrl) {
+	public SiteStream(String id, URL[] sourcePlaylistUrls, int windowDuration) {
 		this.siteStreamId = id;
-		this.sourcePlaylistUrl = sourcePlaylistUrl;
+		this.sourcePlaylistUrls = sourcePlaylistUrls;
+		this.windowDuration = windowDuration;
 	}
 	
 	@PostConstruct
 	private void onPostConstruct() {
-		hlsPlaylist = (HlsPlaylist) context.getBean("HlsPlaylist", sourcePlaylistUrl);
+		hlsPlaylist = (HlsPlaylist) context.getBean("HlsPlaylist", (Object) sourcePlaylistUrls);
 	}
 
 	/**
@@ -120,17 +129,19 @@ public class SiteStream implements ISiteStream {
 			}
 			ServableFile file = fileGenerator.generateServableFile("m3u8");
 			generatedPlaylistFile = file;
+			playlistFileWriter = context.getBean(PlaylistFileWriter.class, file);
 			PlaylistFileGenerator playlistFileGenerator = new PlaylistFileGenerator(file);
-			capture = context.getBean(HlsPlaylistCapture.class, hlsPlaylist);
+			capture = context.getBean(HlsPlaylistCapture.class, hlsPlaylist, windowDuration);
 			capture.setStateChangeListener(new ICaptureStateChangeListener() {
 	
 				@Override
 				public void onStateChange(HlsPlaylistCaptureState newState) {
 					if (newState == HlsPlaylistCaptureState.DELETED) {
-						inactivityTimer.cancel();
-						inactivityTimer.purge();
+						inactivityCheckerTask.cancel();
 						// delete the generated playlist file and call the capture removed callback
+						playlistFileWriter.close();
 						generatedPlaylistFile.delete();
+						playlistContentStore.remove(generatedPlaylistFile.getName());
 						if (captureRemovedListener != null) {
 							captureRemovedListener.onCaptureRemoved();
 						}
@@ -196,9 +207,8 @@ public class SiteStream implements ISiteStream {
 				removeHlsPlaylistCapture();
 			}
 			else {
-				inactivityTimer = new Timer();
 				lastActivity = System.currentTimeMillis();
-				inactivityTimer.schedule(new InactivityCheckerTask(), 1000, 1000);
+				inactivityCheckerTask = scheduler.scheduleRepeating(new InactivityCheckerTask(), 1000, 1000);
 			}
 		}
 		return success;
@@ -277,18 +287,14 @@ public class SiteStream implements ISiteStream {
 		}
 		
 		@Override
-		public void onPlaylistUpdated(String playlistContent) {
-			try {
-				Files.write(Paths.get(file.getAbsolutePath()), playlistContent.getBytes(), StandardOpenOption.CREATE);
-			} catch (IOException e) {
-				e.printStackTrace();
-				logger.error("Error when trying to write generated playlist file.");
-			}
+		public void onPlaylistUpdated(PlaylistSnapshot playlistContent) {
+			playlistContentStore.put(file.getName(), playlistContent);
+			playlistFileWriter.update(playlistContent);
 		}
 		
 	}
 	
-	private class InactivityCheckerTask extends TimerTask {
+	private class InactivityCheckerTask implements Runnable {
 
 		@Override
 		public void run() {
@@ -26,10 +26,11 @@ public class StreamManager {
 	 * If the stream already exists the capture will be restarted.
 	 * Returns null if there was an error.
 	 * @param id
-	 * @param remoteHlsPlaylistUrl
+	 * @param remoteHlsPlaylistUrls Equivalent urls for the remote playlist. The first is the primary one.
+	 * @param windowDuration The number of seconds of the stream that are kept, or 0 to keep all of it.
 	 * @return
 	 */
-	public SiteStream createStream(final String id, URL remoteHlsPlaylistUrl) {
+	public SiteStream createStream(final String id, URL[] remoteHlsPlaylistUrls, int windowDuration) {
 		synchronized(siteStreams) {
 			SiteStream siteStream = siteStreams.get(id);
 			if (siteStream != null) {
@@ -44,7 +45,7 @@ public class StreamManager {
 				siteStreams.remove(id);
 			}
 			
-			final SiteStream newSiteStream = context.getBean(SiteStream.class, id, remoteHlsPlaylistUrl);
+			final SiteStream newSiteStream = context.getBean(SiteStream.class, id, remoteHlsPlaylistUrls, windowDuration);
 			if (!newSiteStream.startCapture()) {
 				logger.warn("An error occurred when trying to start a stream capture.");
 				return null;
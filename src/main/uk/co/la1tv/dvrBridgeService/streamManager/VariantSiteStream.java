@@ -3,9 +3,8 @@ package uk.co.la1tv.dvrBridgeService.streamManager;
 import java.awt.Dimension;
 import java.io.IOException;
 import java.net.URL;
-import java.nio.file.Files;
-import java.nio.file.Paths;
-import java.nio.file.StandardOpenOption;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 
 import javax.annotation.PostConstruct;
@@ -19,6 +18,7 @@ import org.springframework.stereotype.Component;
 import uk.co.la1tv.dvrBridgeService.hlsRecorder.HlsPlaylist;
 import uk.co.la1tv.dvrBridgeService.hlsRecorder.HlsPlaylistCaptureState;
 import uk.co.la1tv.dvrBridgeService.hlsRecorder.HlsVariantPlaylist;
+import uk.co.la1tv.dvrBridgeService.servableFiles.PlaylistContentStore;
 import uk.co.la1tv.dvrBridgeService.servableFiles.ServableFile;
 import uk.co.la1tv.dvrBridgeService.servableFiles.ServableFileGenerator;
 
@@ -41,12 +41,17 @@ public class VariantSiteStream implements ISiteStream {
 	@Autowired
 	private ServableFileGenerator fileGenerator;
 	
+	@Autowired
+	private PlaylistContentStore playlistContentStore;
+	
 	
 	private final Object lock = new Object();
 	
 	// unique id for this stream provided by site
 	private final String siteVariantStreamId;
-	private final URL sourceVariantPlaylistUrl;
+	private final URL[] sourceVariantPlaylistUrls;
+	// the number of seconds of the stream that are kept, or 0 to keep all of it
+	private final int windowDuration;
 	private HlsVariantPlaylist sourceVariantPlaylist;
 	private HashMap<HlsPlaylist, SiteStream> siteStreams = null;
 	private ServableFile generatedVariantPlaylistFile = null;
@@ -54,15 +59,16 @@ public class VariantSiteStream implements ISiteStream {
 	private ISiteStreamCaptureRemovedListener captureRemovedListener = null;
 	private HlsPlaylistCaptureState captureState = HlsPlaylistCaptureState.NOT_STARTED;
 	
-	public VariantSiteStream(String id, URL sourcePlaylistUrl) {
+	public VariantSiteStream(String id, URL[] sourcePlaylistUrls, int windowDuration) {
 		this.siteVariantStreamId = id;
-		this.sourceVariantPlaylistUrl = sourcePlaylistUrl;
+		this.sourceVariantPlaylistUrls = sourcePlaylistUrls;
+		this.windowDuration = windowDuration;
 	}
 	
 
 	@PostConstruct
 	private void onPostConstruct() {
-		sourceVariantPlaylist = (HlsVariantPlaylist) context.getBean("HlsVariantPlaylist", sourceVariantPlaylistUrl);
+		sourceVariantPlaylist = (HlsVariantPlaylist) context.getBean("HlsVariantPlaylist", (Object) sourceVariantPlaylistUrls);
 		createSiteStreams();
 	}
 	
@@ -75,7 +81,7 @@ public class VariantSiteStream implements ISiteStream {
 		siteStreams = new HashMap<>();
 		synchronized(siteStreams) {
 			for(HlsPlaylist playlist : playlists) {
-				siteStreams.put(playlist, context.getBean(SiteStream.class, siteVariantStreamId, playlist.getUrl()));
+				siteStreams.put(playlist, context.getBean(SiteStream.class, siteVariantStreamId, playlist.getUrls(), windowDuration));
 			}
 		}
 		return true;
@@ -173,7 +179,8 @@ public class VariantSiteStream implements ISiteStream {
 			}
 			contents += generatedPlaylistUrl.toExternalForm()+"\n";
 		}
-		Files.write(Paths.get(file.getAbsolutePath()), contents.getBytes(), StandardOpenOption.CREATE);
+		PlaylistFileWriter.writeAtomically(file, ByteBuffer.wrap(contents.getBytes(StandardCharsets.UTF_8)));
+		playlistContentStore.put(file.getName(), contents);
 		return true;
 	}
 	
@@ -337,6 +344,7 @@ public class VariantSiteStream implements ISiteStream {
 		}
 		removeSiteStreamRemoveListeners();
 		generatedVariantPlaylistFile.delete();
+		playlistContentStore.remove(generatedVariantPlaylistFile.getName());
 		captureState = HlsPlaylistCaptureState.DELETED;
 		if (captureRemovedListener != null) {
 			captureRemovedListener.onCaptureRemoved();
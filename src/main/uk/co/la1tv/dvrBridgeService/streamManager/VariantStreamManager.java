@@ -29,10 +29,11 @@ public class VariantStreamManager {
 	 * If the stream already exists the captures will be restarted.
 	 * Returns null if there was an error.
 	 * @param id
-	 * @param remoteHlsVariantPlaylistUrl
+	 * @param remoteHlsVariantPlaylistUrls Equivalent urls for the remote variant playlist. The first is the primary one.
+	 * @param windowDuration The number of seconds of the stream that are kept, or 0 to keep all of it.
 	 * @return
 	 */
-	public VariantSiteStream createStream(final String id, URL remoteHlsVariantPlaylistUrl) {
+	public VariantSiteStream createStream(final String id, URL[] remoteHlsVariantPlaylistUrls, int windowDuration) {
 		synchronized(variantSiteStreams) {
 			VariantSiteStream variantSiteStream = variantSiteStreams.get(id);
 			if (variantSiteStream != null) {
@@ -47,7 +48,7 @@ public class VariantStreamManager {
 				variantSiteStreams.remove(id);
 			}
 			
-			final VariantSiteStream newVariantSiteStream = context.getBean(VariantSiteStream.class, id, remoteHlsVariantPlaylistUrl);
+			final VariantSiteStream newVariantSiteStream = context.getBean(VariantSiteStream.class, id, remoteHlsVariantPlaylistUrls, windowDuration);
 			if (!newVariantSiteStream.startCapture()) {
 				logger.warn("An error occurred when trying to start a variant stream capture.");
 				return null;